@@ -0,0 +1,72 @@
+package com.lantin.unitrade.config;
+
+import com.lantin.unitrade.domain.po.Item;
+import com.lantin.unitrade.domain.po.User;
+import com.lantin.unitrade.service.IItemService;
+import com.lantin.unitrade.service.IUserService;
+import com.lantin.unitrade.utils.CollUtils;
+import com.lantin.unitrade.utils.IdBloomFilter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static com.lantin.unitrade.constant.RedisConstants.BLOOM_ITEM;
+import static com.lantin.unitrade.constant.RedisConstants.BLOOM_USER;
+
+/**
+ * 启动时注册并加载商品、用户的id布隆过滤器
+ * 在后台线程中加载，不阻塞启动，加载完成之前查询一律放行
+ * @Author lantin
+ * @Date 2024/8/8
+ */
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class BloomFilterInitializer implements ApplicationRunner {
+
+    private final IdBloomFilter idBloomFilter;
+    private final IItemService itemService;
+    private final IUserService userService;
+    private final CacheProperties cacheProperties;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!Boolean.TRUE.equals(cacheProperties.getBloom().getEnabled())) {
+            return;
+        }
+        int pageSize = cacheProperties.getBloom().getPageSize();
+        // 按id游标分页查询，只查id字段
+        idBloomFilter.register(BLOOM_ITEM, lastId -> {
+            List<Item> items = itemService.lambdaQuery()
+                    .select(Item::getId)
+                    .gt(Item::getId, lastId)
+                    .orderByAsc(Item::getId)
+                    .last("limit " + pageSize)
+                    .list();
+            return CollUtils.isEmpty(items) ? CollUtils.emptyList()
+                    : items.stream().map(Item::getId).collect(Collectors.toList());
+        });
+        idBloomFilter.register(BLOOM_USER, lastId -> {
+            List<User> users = userService.lambdaQuery()
+                    .select(User::getId)
+                    .gt(User::getId, lastId)
+                    .orderByAsc(User::getId)
+                    .last("limit " + pageSize)
+                    .list();
+            return CollUtils.isEmpty(users) ? CollUtils.emptyList()
+                    : users.stream().map(User::getId).collect(Collectors.toList());
+        });
+        CompletableFuture.runAsync(idBloomFilter::init)
+                .exceptionally(e -> {
+                    log.error("布隆过滤器初始化失败", e);
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,39 @@
+package com.lantin.unitrade.config;
+
+import com.lantin.unitrade.utils.BinaryCacheCodec;
+import com.lantin.unitrade.utils.CacheCodec;
+import com.lantin.unitrade.utils.JsonCacheCodec;
+import com.lantin.unitrade.utils.MigrationCacheCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 缓存配置类
+ * @Author lantin
+ * @Date 2024/8/6
+ */
+
+@Slf4j
+@Configuration
+public class CacheConfig {
+
+    /**
+     * 根据配置选择缓存值的编解码器
+     * @param cacheProperties
+     * @return
+     */
+    @Bean
+    public CacheCodec cacheCodec(CacheProperties cacheProperties) {
+        CacheProperties.Codec codec = cacheProperties.getCodec();
+        JsonCacheCodec jsonCodec = new JsonCacheCodec();
+        BinaryCacheCodec binaryCodec = new BinaryCacheCodec();
+        CacheCodec writeCodec = "binary".equalsIgnoreCase(codec.getType()) ? binaryCodec : jsonCodec;
+        log.info("缓存编码格式：{}，迁移模式：{}", codec.getType(), codec.getMigration());
+        if (Boolean.TRUE.equals(codec.getMigration())) {
+            // 迁移模式下写入目标格式，读取两种格式都兼容
+            return new MigrationCacheCodec(writeCodec, binaryCodec, jsonCodec);
+        }
+        return writeCodec;
+    }
+}
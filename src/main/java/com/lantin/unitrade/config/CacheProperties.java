@@ -0,0 +1,258 @@
+package com.lantin.unitrade.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 缓存相关配置
+ * @Author lantin
+ * @Date 2024/8/5
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "unitrade.cache")
+public class CacheProperties {
+
+    /**
+     * 本地一级缓存（redis前面的进程内缓存）配置
+     */
+    private Local local = new Local();
+
+    /**
+     * 缓存值的编码格式配置
+     */
+    private Codec codec = new Codec();
+
+    /**
+     * 缓存未命中时的请求合并配置
+     */
+    private SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 逻辑过期缓存的重建线程池配置
+     */
+    private Rebuild rebuild = new Rebuild();
+
+    /**
+     * 逻辑过期缓存的提前刷新（XFetch）配置
+     */
+    private EarlyRefresh earlyRefresh = new EarlyRefresh();
+
+    /**
+     * 防止缓存穿透的id布隆过滤器配置
+     */
+    private Bloom bloom = new Bloom();
+
+    /**
+     * 缓存预热配置
+     */
+    private WarmUp warmUp = new WarmUp();
+
+    /**
+     * 热点key探测及本地提升配置
+     */
+    private HotKey hotKey = new HotKey();
+
+    /**
+     * 缓存指标配置
+     */
+    private Metrics metrics = new Metrics();
+
+    @Data
+    public static class Local {
+        /**
+         * 是否开启本地一级缓存
+         */
+        private Boolean enabled = false;
+        /**
+         * 按key前缀划分的本地缓存区域，只有匹配到前缀的key才会进入本地缓存
+         */
+        private List<Spec> specs = new ArrayList<>();
+    }
+
+    @Data
+    public static class Codec {
+        /**
+         * 写入redis时使用的格式：json（hutool json，原有格式）或 binary（紧凑二进制）
+         */
+        private String type = "json";
+        /**
+         * 迁移模式：读取时两种格式都能识别，用于切换格式期间新旧数据共存
+         */
+        private Boolean migration = false;
+    }
+
+    @Data
+    public static class SingleFlight {
+        /**
+         * 分布式模式：除了本进程内合并，还用redisson分布式锁让多个节点对同一key只查一次数据库
+         */
+        private Boolean distributed = false;
+        /**
+         * 分布式模式下等待其他节点加载的最长时间，超时后直接查询数据库
+         */
+        private Duration lockWait = Duration.ofMillis(200);
+        /**
+         * 本进程内等待其他线程加载结果的最长时间，超时后自己加载
+         */
+        private Duration waitTimeout = Duration.ofSeconds(3);
+    }
+
+    @Data
+    public static class Rebuild {
+        /**
+         * 核心线程数
+         */
+        private Integer coreSize = 4;
+        /**
+         * 最大线程数
+         */
+        private Integer maxSize = 10;
+        /**
+         * 队列容量，队列满时放弃重建，继续返回旧值
+         */
+        private Integer queueCapacity = 200;
+        /**
+         * 非核心线程的空闲存活时间
+         */
+        private Duration keepAlive = Duration.ofSeconds(60);
+        /**
+         * 应用关闭时等待剩余任务执行完的最长时间
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class EarlyRefresh {
+        /**
+         * 是否开启提前刷新，开启后临近逻辑过期的key会按概率提前在后台重建
+         */
+        private Boolean enabled = false;
+        /**
+         * 大于1时更倾向于提前刷新，小于1时更倾向于推迟刷新
+         */
+        private Double beta = 1.0;
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 是否开启布隆过滤器
+         */
+        private Boolean enabled = false;
+        /**
+         * 预计的id数量
+         */
+        private Long expectedInsertions = 1_000_000L;
+        /**
+         * 期望的误判率
+         */
+        private Double falseProbability = 0.01;
+        /**
+         * 初始化时分页查询id的每页数量
+         */
+        private Integer pageSize = 5000;
+        /**
+         * 定期重建的cron表达式
+         */
+        private String rebuildCron = "0 0 4 * * ?";
+    }
+
+    @Data
+    public static class WarmUp {
+        /**
+         * 是否在启动时预热
+         */
+        private Boolean onStartup = false;
+        /**
+         * 每页读取的商品数
+         */
+        private Integer pageSize = 500;
+        /**
+         * 并行写入redis的线程数
+         */
+        private Integer parallelism = 4;
+        /**
+         * 每秒最多读取的商品数，小于等于0表示不限速
+         */
+        private Integer maxRowsPerSecond = 5000;
+    }
+
+    @Data
+    public static class HotKey {
+        /**
+         * 是否开启热点key探测
+         */
+        private Boolean enabled = false;
+        /**
+         * 采样比例，0到1之间
+         */
+        private Double sampleRate = 0.1;
+        /**
+         * 滑动窗口中每个小窗口的时长
+         */
+        private Duration window = Duration.ofSeconds(5);
+        /**
+         * 小窗口的个数，滑动窗口的总时长 = window * windows
+         */
+        private Integer windows = 6;
+        /**
+         * count-min sketch每一行的宽度
+         */
+        private Integer width = 2048;
+        /**
+         * count-min sketch的行数（哈希函数个数）
+         */
+        private Integer depth = 4;
+        /**
+         * 最多保留的热点key个数
+         */
+        private Integer topK = 20;
+        /**
+         * 滑动窗口内的访问次数超过该值即为热点key
+         */
+        private Long threshold = 1000L;
+        /**
+         * 允许提升到本地的key前缀，只有读缓存的key才适合提升
+         */
+        private List<String> promotePrefixes = new ArrayList<>();
+        /**
+         * 提升到本地后的存活时间，应该很短
+         */
+        private Duration localTtl = Duration.ofSeconds(1);
+        /**
+         * 本地热点区域最多的条目数
+         */
+        private Integer localMaxSize = 1000;
+    }
+
+    @Data
+    public static class Metrics {
+        /**
+         * 单独统计的key前缀，其余的key统计到other中
+         */
+        private List<String> prefixes = new ArrayList<>();
+    }
+
+    @Data
+    public static class Spec {
+        /**
+         * key前缀，如 cache:item:
+         */
+        private String keyPrefix;
+        /**
+         * 该区域最多缓存的条目数，超出后按LRU淘汰
+         */
+        private Integer maxSize = 1000;
+        /**
+         * 条目在本地的存活时间，用于兜底限制各节点之间的数据不一致时长
+         */
+        private Duration ttl = Duration.ofSeconds(5);
+    }
+}
@@ -0,0 +1,25 @@
+package com.lantin.unitrade.config;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * elasticsearch客户端配置，搜索和索引同步共用一个客户端
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+
+@Configuration
+public class ElasticsearchConfig {
+
+    @Bean(destroyMethod = "close")
+    public RestHighLevelClient restHighLevelClient(SearchProperties searchProperties) {
+        HttpHost[] hosts = searchProperties.getHosts().stream()
+                .map(HttpHost::create)
+                .toArray(HttpHost[]::new);
+        return new RestHighLevelClient(RestClient.builder(hosts));
+    }
+}
@@ -0,0 +1,26 @@
+package com.lantin.unitrade.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 全局id生成器相关配置
+ * @Author lantin
+ * @Date 2024/8/12
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "unitrade.id")
+public class IdProperties {
+
+    /**
+     * 每次从redis预取的序列号个数
+     */
+    private Integer segmentSize = 1000;
+    /**
+     * 当前号段剩余的比例低于该值时，异步预取下一个号段
+     */
+    private Double refillRatio = 0.2;
+}
@@ -5,17 +5,28 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.lantin.unitrade.domain.dto.UserDTO;
 import com.lantin.unitrade.utils.RabbitMqHelper;
 import com.lantin.unitrade.utils.UserHolder;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.DirectExchange;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConversionException;
 import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import static com.lantin.unitrade.constant.MQConstants.*;
+
 /**
  * mq的配置类
  */
@@ -63,6 +74,74 @@ public class MqConfig {
     // }
 
 
+    /**
+     * 批量消费的监听器容器工厂，攒够batch-size条消息或者等待receive-timeout后把一批消息交给监听器
+     * 手动确认，由监听器在事务提交后逐条ack
+     * @param configurer
+     * @param connectionFactory
+     * @param orderProperties
+     * @return
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            OrderProperties orderProperties) {
+        OrderProperties.Batch batch = orderProperties.getBatch();
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batch.getSize());
+        factory.setReceiveTimeout(batch.getReceiveTimeout().toMillis());
+        factory.setPrefetchCount(batch.getSize());  // 预取数不能小于批大小，否则永远凑不满一批
+        factory.setConcurrentConsumers(batch.getConsumers());
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+
+
+    /**
+     * 商品索引同步的批量消费容器工厂，手动确认，由监听器逐条ack、重试或移入死信队列
+     * @param configurer
+     * @param connectionFactory
+     * @param searchProperties
+     * @return
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory searchSyncListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            SearchProperties searchProperties) {
+        SearchProperties.Sync sync = searchProperties.getSync();
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(sync.getSize());
+        factory.setReceiveTimeout(sync.getReceiveTimeout().toMillis());
+        factory.setPrefetchCount(sync.getSize());
+        factory.setConcurrentConsumers(sync.getConsumers());
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+
+
+    /**
+     * 商品索引同步的死信队列，解析不了或者多次同步失败的商品变更消息，排查后可以手动移回同步队列
+     * @return
+     */
+    @Bean
+    public Queue itemIndexSyncDlq() {
+        return QueueBuilder.durable(ITEM_INDEX_SYNC_DLQ).build();
+    }
+
+    @Bean
+    public Binding itemIndexSyncDlqBinding() {
+        return BindingBuilder.bind(itemIndexSyncDlq()).to(new DirectExchange(ITEM_DIRECT_EXCHANGE)).with(ITEM_CHANGE_DEAD_ROUTINGKEY);
+    }
+
+
     @Bean   // 将RabbitMqHelper注册为Bean
     public RabbitMqHelper rabbitMqHelper(RabbitTemplate rabbitTemplate) {
         return new RabbitMqHelper(rabbitTemplate);
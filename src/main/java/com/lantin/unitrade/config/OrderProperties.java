@@ -0,0 +1,97 @@
+package com.lantin.unitrade.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 订单相关配置
+ * @Author lantin
+ * @Date 2024/8/11
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "unitrade.order")
+public class OrderProperties {
+
+    private Batch batch = new Batch();
+    private Timeout timeout = new Timeout();
+    private Intake intake = new Intake();
+
+
+    @Data
+    public static class Batch {
+        /**
+         * 是否批量消费下单成功消息，关闭时每条消息单独一个事务
+         */
+        private Boolean enabled = false;
+        /**
+         * 每批最多的消息数
+         */
+        private Integer size = 50;
+        /**
+         * 凑不满一批时最多等待的时间
+         */
+        private Duration receiveTimeout = Duration.ofMillis(200);
+        /**
+         * 消费者线程数
+         */
+        private Integer consumers = 1;
+        /**
+         * 单条消息最多处理次数，非临时性错误超过后丢弃消息并归还库存，临时性错误（如数据库连接失败）一直重试
+         * 重试相关配置对逐条消费同样生效
+         */
+        private Integer maxAttempts = 3;
+        /**
+         * 第一次重试的延迟，之后每次翻倍
+         */
+        private Duration retryBackoff = Duration.ofSeconds(1);
+        /**
+         * 重试延迟的上限
+         */
+        private Duration maxRetryBackoff = Duration.ofMinutes(1);
+    }
+
+
+    @Data
+    public static class Timeout {
+        /**
+         * 下单后多久没有支付就取消订单
+         */
+        private Duration payTimeout = Duration.ofSeconds(10);
+        /**
+         * 每次认领的超时订单数
+         */
+        private Integer batchSize = 200;
+        /**
+         * 认领后的租约，超过该时间还没有处理完就由其他节点重新认领
+         */
+        private Duration lease = Duration.ofSeconds(60);
+        /**
+         * 每次轮询最多处理的批数，避免积压时一次轮询占用太久
+         */
+        private Integer maxBatches = 50;
+    }
+
+
+    @Data
+    public static class Intake {
+        /**
+         * 异步下单线程池
+         */
+        private Integer coreSize = 8;
+        private Integer maxSize = 32;
+        private Integer queueCapacity = 1000;
+        /**
+         * 下单处理状态在redis中的保存时间
+         */
+        private Duration statusTtl = Duration.ofMinutes(30);
+        /**
+         * 长轮询下单状态时最多等待的时间
+         */
+        private Duration maxWait = Duration.ofSeconds(30);
+    }
+}
@@ -0,0 +1,108 @@
+package com.lantin.unitrade.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * 商品搜索相关配置
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "unitrade.search")
+public class SearchProperties {
+
+    /**
+     * elasticsearch地址
+     */
+    private List<String> hosts = List.of("http://127.0.0.1:9200");
+    /**
+     * 商品索引名
+     */
+    private String index = "items";
+
+    private Sync sync = new Sync();
+    private Reindex reindex = new Reindex();
+    private Cursor cursor = new Cursor();
+
+
+    @Data
+    public static class Sync {
+        /**
+         * 每批最多的商品变更消息数，同一商品的多条消息合并为一次写入
+         */
+        private Integer size = 200;
+        /**
+         * 凑不满一批时最多等待的时间
+         */
+        private Duration receiveTimeout = Duration.ofMillis(500);
+        /**
+         * 消费者线程数
+         */
+        private Integer consumers = 1;
+        /**
+         * 单条消息最多处理次数，非临时性错误超过后移入死信队列，临时性错误（如es、数据库连接失败）一直重试
+         */
+        private Integer maxAttempts = 5;
+        /**
+         * 第一次重试的延迟，之后每次翻倍
+         */
+        private Duration retryBackoff = Duration.ofSeconds(1);
+        /**
+         * 重试延迟的上限
+         */
+        private Duration maxRetryBackoff = Duration.ofMinutes(1);
+    }
+
+
+    @Data
+    public static class Reindex {
+        /**
+         * 每页读取的商品数，一页对应一个bulk请求
+         */
+        private Integer pageSize = 1000;
+        /**
+         * 把商品转换为文档的线程数
+         */
+        private Integer parallelism = 4;
+        /**
+         * 同时在途的bulk请求数，读得比写得快时阻塞读取
+         */
+        private Integer maxInFlight = 4;
+        /**
+         * 重建完成后新索引的副本数，写入期间为0
+         */
+        private Integer replicas = 0;
+        /**
+         * 重建完成后新索引的刷新间隔，写入期间关闭刷新
+         */
+        private String refreshInterval = "1s";
+        /**
+         * 别名切换后是否删除旧索引
+         */
+        private Boolean deleteOldIndex = true;
+        /**
+         * 启动时发现未完成的重建（检查点还在）是否自动继续
+         */
+        private Boolean resumeOnStartup = true;
+        /**
+         * 检查点超过该时间没有更新就认为重建已经中断：增量同步不再双写新索引，继续重建时丢弃旧索引重新开始
+         */
+        private Duration heartbeatTimeout = Duration.ofMinutes(10);
+    }
+
+
+    @Data
+    public static class Cursor {
+        /**
+         * 游标分页时间点的存活时间，每次翻页都会续期，超过该时间没有翻页游标就失效了
+         */
+        private Duration pitKeepAlive = Duration.ofMinutes(1);
+    }
+}
@@ -0,0 +1,48 @@
+package com.lantin.unitrade.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 秒杀下单相关配置
+ * @Author lantin
+ * @Date 2024/8/11
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "unitrade.seckill")
+public class SeckillProperties {
+
+    /**
+     * 是否启动消费秒杀订单消息队列的线程
+     */
+    private Boolean consumerEnabled = true;
+    /**
+     * 每次最多读取的消息数
+     */
+    private Integer batchSize = 50;
+    /**
+     * 没有消息时阻塞等待的时间
+     */
+    private Duration block = Duration.ofSeconds(2);
+    /**
+     * 消息被读取后超过该时间还没有确认，就认为消费者已经挂了，由其他消费者认领
+     */
+    private Duration claimMinIdle = Duration.ofSeconds(60);
+    /**
+     * 检查pending消息的间隔
+     */
+    private Duration claimInterval = Duration.ofSeconds(30);
+    /**
+     * 最多投递次数，超过后移入死信队列并归还库存
+     */
+    private Integer maxDeliveries = 3;
+    /**
+     * 是否在处理pending消息时裁剪stream，只裁剪最早的pending消息之前（都已确认）的部分
+     */
+    private Boolean trimEnabled = true;
+}
@@ -0,0 +1,33 @@
+package com.lantin.unitrade.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 库存相关配置
+ * @Author lantin
+ * @Date 2024/8/10
+ */
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "unitrade.stock")
+public class StockProperties {
+
+    /**
+     * 分片库存中最多和最少的分片相差超过该值时重新平衡
+     */
+    private Integer rebalanceThreshold = 10;
+    /**
+     * 库存对账时每页查询的商品数
+     */
+    private Integer reconcilePageSize = 500;
+    /**
+     * 库存写回记录的保留时间，超过的记录被定期删除
+     * 未完成的批次会在下一次写回时重放，只要保留时间远大于数据库可能不可用的时间，被删除的记录就不会再被用到
+     */
+    private Duration flushLogRetention = Duration.ofDays(7);
+}
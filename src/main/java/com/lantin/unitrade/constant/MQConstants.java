@@ -10,6 +10,7 @@ public class MQConstants {
     public static final String ORDER_DIRECT_EXCHANGE = "order.direct";
     public static final String ORDER_SUCCESS_QUEUE = "order.success.queue";
     public static final String ORDER_SUCCESS_ROUTINGKEY = "order.success";
+    public static final String ORDER_SUCCESS_RETRY_ROUTINGKEY = "order.success.retry";
     public static final String PAY_DIRECT_EXCHANGE = "pay.direct";
     public static final String PAY_SUCCESS_QUEUE = "pay.success.queue";
     public static final String PAY_SUCCESS_ROUTINGKEY = "pay.success";
@@ -19,5 +20,11 @@ public class MQConstants {
     public static final  String DELAY_EXCHANGE = "trade.delay.direct";
     public static final  String DELAY_ORDER_QUEUE = "trade.delay.order.queue";
     public static final  String DELAY_ORDER_KEY = "delay.order.query";
+    public static final String ITEM_DIRECT_EXCHANGE = "item.direct";
+    public static final String ITEM_INDEX_SYNC_QUEUE = "search.item.sync.queue";
+    public static final String ITEM_CHANGE_ROUTINGKEY = "item.change";
+    public static final String ITEM_CHANGE_RETRY_ROUTINGKEY = "item.change.retry";
+    public static final String ITEM_INDEX_SYNC_DLQ = "search.item.sync.dlq";
+    public static final String ITEM_CHANGE_DEAD_ROUTINGKEY = "item.change.dead";
 
 }
@@ -23,6 +23,17 @@ public class RedisConstants {
     public static final String CACHE_CART_KEY = "cache:cart:";
     public static final Long CACHE_SHOP_TYPE_TTL = 30L;
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type";
+    // 商品搜索结果缓存，只存在于本地缓存，cache:search:list|facets:{规范化的查询条件}、cache:search:filters:{关键字}
+    public static final String CACHE_SEARCH_KEY = "cache:search:";
+    public static final String CACHE_SEARCH_LIST_KEY = "cache:search:list:";
+    public static final String CACHE_SEARCH_FILTERS_KEY = "cache:search:filters:";
+    public static final String CACHE_SEARCH_FACETS_KEY = "cache:search:facets:";
+    // 本地缓存跨节点失效通知的频道
+    public static final String CACHE_INVALIDATE_TOPIC = "cache:invalidate";
+    // 布隆过滤器，bloom:{过滤器名}
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_ITEM = "item";
+    public static final String BLOOM_USER = "user";
 
     public static final String LOCK_ITEM_KEY = "lock:item:";
     public static final String LOCK_ORDER_KEY = "lock:order:";
@@ -31,12 +42,39 @@ public class RedisConstants {
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String ITEM_STOCK_KEY = "item:stock:";
+    // 开启了库存分片的商品，hash结构：商品id -> 分片数，分片key为 item:stock:{itemId}:{分片号}
+    public static final String ITEM_STOCK_SHARDS_KEY = "item:stock:shards";
+    public static final String LOCK_STOCK_KEY = "lock:stock:";
+    // 库存流水，hash结构：商品id -> 还没有写回数据库的库存变化量，写回时整体改名为processing批次
+    public static final String ITEM_STOCK_JOURNAL_KEY = "item:stock:journal";
+    public static final String ITEM_STOCK_JOURNAL_PROCESSING_KEY = "item:stock:journal:processing";
+    // 无法写回数据库的流水，hash结构：商品id -> 库存变化量，等待人工处理
+    public static final String ITEM_STOCK_JOURNAL_PARKED_KEY = "item:stock:journal:parked";
+    public static final String LOCK_STOCK_FLUSH_KEY = "lock:stock:flush";
+    // 秒杀一人一单，set结构：已下单的用户id
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 秒杀订单消息队列及消费者组
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_STREAM_DLQ_KEY = "stream.orders.dlq";
+    // 秒杀订单消息索引，hash结构：消息id -> userId:itemId:orderId，消息被裁剪或删除后仍能归还库存
+    public static final String SECKILL_STREAM_INDEX_KEY = "stream.orders.index";
+    public static final String SECKILL_STREAM_GROUP = "g1";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
     public static final String INCREMENT_ID_KEY = "icr:";
     public static final String ORDER_PREFIX = "order:";
+    // 下单处理状态 order:status:{orderId}，值为OrderCreateStatus的value，状态变化时在topic上广播 订单id:状态
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_TOPIC = "order:status:topic";
+    // 等待支付超时的订单，zset结构：订单id -> 超时时间（毫秒）
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    // 已经被认领正在处理的超时订单，zset结构：订单id -> 租约到期时间（毫秒）
+    public static final String ORDER_TIMEOUT_PROCESSING_KEY = "order:timeout:processing";
+    // 商品索引全量重建的检查点，hash结构：index 新索引名，version 文档版本号，lastId 已经写入完成的最大商品id，indexed 已写入的文档数
+    public static final String SEARCH_REINDEX_KEY = "search:reindex";
+    public static final String LOCK_SEARCH_REINDEX_KEY = "lock:search:reindex";
     public static final String FOLLOWS_KEY = "follows:";
     // 滚动分页的pageSize
     public static final Long SCORE_PAGE_SIZE = 2L;
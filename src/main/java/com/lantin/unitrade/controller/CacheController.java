@@ -0,0 +1,67 @@
+package com.lantin.unitrade.controller;
+
+import com.lantin.unitrade.domain.dto.Result;
+import com.lantin.unitrade.domain.vo.CacheWarmUpVO;
+import com.lantin.unitrade.service.ICacheWarmUpService;
+import com.lantin.unitrade.utils.CacheRebuildExecutor;
+import com.lantin.unitrade.utils.HotKeyDetector;
+import com.lantin.unitrade.utils.SingleFlight;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 缓存运行状态相关接口
+ * @Author lantin
+ * @Date 2024/8/7
+ */
+
+@Api(tags = "缓存相关接口")
+@RestController
+@RequestMapping("/cache")
+@RequiredArgsConstructor
+public class CacheController {
+
+    private final SingleFlight singleFlight;
+    private final CacheRebuildExecutor cacheRebuildExecutor;
+    private final ICacheWarmUpService cacheWarmUpService;
+    private final HotKeyDetector hotKeyDetector;
+
+    @ApiOperation("查询缓存统计信息")
+    @GetMapping("/stats")
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("singleFlight", singleFlight.stats());
+        stats.put("rebuild", cacheRebuildExecutor.stats());
+        stats.put("hotKey", hotKeyDetector.stats());
+        return stats;
+    }
+
+    @ApiOperation("开始商品缓存预热")
+    @PostMapping("/warm-up")
+    public Result startWarmUp() {
+        if (!cacheWarmUpService.startItemWarmUp()) {
+            return Result.fail("缓存预热正在执行中");
+        }
+        return Result.ok(cacheWarmUpService.getProgress());
+    }
+
+    @ApiOperation("查询缓存预热进度")
+    @GetMapping("/warm-up")
+    public CacheWarmUpVO warmUpProgress() {
+        return cacheWarmUpService.getProgress();
+    }
+
+    @ApiOperation("查询当前的热点key")
+    @GetMapping("/hot-keys")
+    public Map<String, Long> hotKeys() {
+        return hotKeyDetector.topKeys();
+    }
+}
@@ -6,6 +6,8 @@ import com.lantin.unitrade.domain.dto.*;
 import com.lantin.unitrade.domain.po.Item;
 import com.lantin.unitrade.enums.ItemStatus;
 import com.lantin.unitrade.service.IItemService;
+import com.lantin.unitrade.service.IStockService;
+import com.lantin.unitrade.service.IStockWriteBackService;
 import com.lantin.unitrade.utils.BeanUtils;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -14,6 +16,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.Map;
 
 @Slf4j
 @Api(tags = "商品管理相关接口")
@@ -22,8 +25,9 @@ import java.util.List;
 @RequiredArgsConstructor
 public class ItemController {
 
-    // TODO 商品增删改时，用MQ异步通知实现索引库数据的同步更新
     private final IItemService itemService;
+    private final IStockService stockService;
+    private final IStockWriteBackService stockWriteBackService;
 
     @ApiOperation("分页查询商品")
     @GetMapping("/page")
@@ -58,10 +62,7 @@ public class ItemController {
     @ApiOperation("更新商品状态")
     @PutMapping("/status/{id}/{status}")
     public void updateItemStatus(@PathVariable("id") Long id, @PathVariable("status") Integer status){
-        Item item = new Item();
-        item.setId(id);
-        item.setStatus(status);
-        itemService.updateById(item);
+        itemService.updateItemStatus(id, status);
     }
 
     @ApiOperation("更新商品")
@@ -90,4 +91,28 @@ public class ItemController {
     public void restoreStock(@RequestBody List<OrderDetailDTO> items){
         itemService.restoreStock(items);
     }
+
+    @ApiOperation("查询商品在redis中的库存")
+    @GetMapping("/{id}/stock")
+    public Long queryStock(@PathVariable("id") Long id) {
+        return stockService.getStock(id);
+    }
+
+    @ApiOperation("redis库存与数据库库存对账")
+    @GetMapping("/stock/reconcile")
+    public Map<Long, Long> reconcileStock() {
+        return stockWriteBackService.reconcile();
+    }
+
+    @ApiOperation("开启库存分片")
+    @PutMapping("/{id}/stock/shards/{shards}")
+    public void enableStockSharding(@PathVariable("id") Long id, @PathVariable("shards") Integer shards) {
+        stockService.enableSharding(id, shards);
+    }
+
+    @ApiOperation("关闭库存分片")
+    @DeleteMapping("/{id}/stock/shards")
+    public void disableStockSharding(@PathVariable("id") Long id) {
+        stockService.disableSharding(id);
+    }
 }
@@ -2,14 +2,21 @@ package com.lantin.unitrade.controller;
 
 import com.lantin.unitrade.domain.dto.OrderFormDTO;
 import com.lantin.unitrade.domain.vo.OrderVO;
+import com.lantin.unitrade.enums.OrderCreateStatus;
 import com.lantin.unitrade.service.IOrderService;
+import com.lantin.unitrade.service.IOrderStatusService;
 import com.lantin.unitrade.utils.BeanUtils;
+import com.lantin.unitrade.utils.UserHolder;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiOperation;
 import lombok.RequiredArgsConstructor;
 import org.apache.ibatis.annotations.Param;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Api(tags = "订单管理接口")
 @RestController
@@ -17,6 +24,7 @@ import org.springframework.web.bind.annotation.*;
 @RequiredArgsConstructor
 public class OrderController {
     private final IOrderService orderService;
+    private final IOrderStatusService orderStatusService;
 
     @ApiOperation("根据id查询订单")
     @GetMapping("{id}")
@@ -35,6 +43,31 @@ public class OrderController {
         return orderService.placeOrder(orderFormDTO);
     }
 
+    @ApiOperation("异步下单，返回订单id后通过下单处理状态查询结果")
+    @PostMapping("/async")
+    public CompletableFuture<Long> placeOrderAsync(@RequestBody OrderFormDTO orderFormDTO) {
+        return orderService.placeOrderAsync(orderFormDTO);
+    }
+
+    @ApiOperation("查询当前用户的下单处理状态，wait大于0时长轮询，状态变为已创建或失败后立即返回")
+    @GetMapping("/{id}/status")
+    public DeferredResult<OrderCreateStatus> queryOrderCreateStatus(@PathVariable("id") Long orderId,
+                                                                    @RequestParam(value = "wait", defaultValue = "0") Long wait) {
+        return orderStatusService.await(orderId, UserHolder.getUser().getId(), wait);
+    }
+
+    @ApiOperation("秒杀下单")
+    @PostMapping("/seckill/{itemId}")
+    public Long seckill(@PathVariable("itemId") Long itemId) {
+        return orderService.seckill(itemId);
+    }
+
+    @ApiOperation("批量取消当前用户未付款的订单，返回实际取消的订单id")
+    @PutMapping("/cancel")
+    public List<Long> cancelOrders(@RequestBody List<Long> orderIds) {
+        return orderService.cancelMyOrders(orderIds);
+    }
+
     /**
      * TODO 要不要改成修改订单状态而不是限定改成已支付？
      * @param orderId
@@ -1,9 +1,15 @@
 package com.lantin.unitrade.controller;
 
 
+import com.lantin.unitrade.domain.dto.ItemCursorQuery;
 import com.lantin.unitrade.domain.dto.ItemDTO;
 import com.lantin.unitrade.domain.dto.ItemPageQuery;
 import com.lantin.unitrade.domain.dto.PageDTO;
+import com.lantin.unitrade.domain.dto.Result;
+import com.lantin.unitrade.domain.vo.ItemCursorVO;
+import com.lantin.unitrade.domain.vo.ItemReindexVO;
+import com.lantin.unitrade.domain.vo.ItemSearchVO;
+import com.lantin.unitrade.service.IItemReindexService;
 import com.lantin.unitrade.service.ISearchService;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -23,6 +29,7 @@ import java.util.Map;
 public class SearchController {
 
     private final ISearchService searchService;
+    private final IItemReindexService itemReindexService;
 
     /**
      * 在elasticsearch中搜索商品信息
@@ -48,4 +55,53 @@ public class SearchController {
         log.info("根据关键字获取过滤项：query={}", query);
         return searchService.searchItemFilters(query);
     }
+
+
+    /**
+     * 一次请求同时返回搜索结果和过滤项
+     * @param query
+     * @return
+     */
+    @ApiOperation("搜索商品及过滤项")
+    @GetMapping("/page")
+    public ItemSearchVO searchWithFacets(ItemPageQuery query) throws IOException {
+        log.info("商品搜索及过滤项：query={}", query);
+        return searchService.searchItemsWithFacets(query);
+    }
+
+    /**
+     * 游标分页搜索商品，用于无限滚动等深翻页的场景
+     * @param query
+     * @return
+     */
+    @ApiOperation("游标分页搜索商品")
+    @GetMapping("/scroll")
+    public ItemCursorVO searchByCursor(ItemCursorQuery query) throws IOException {
+        log.info("商品游标分页搜索：query={}", query);
+        return searchService.searchItemsByCursor(query);
+    }
+
+    @ApiOperation("开始全量重建商品索引")
+    @PostMapping("/reindex")
+    public Result startReindex() {
+        if (!itemReindexService.startReindex()) {
+            return Result.fail("商品索引重建正在执行中");
+        }
+        return Result.ok(itemReindexService.getProgress());
+    }
+
+    @ApiOperation("取消商品索引重建，删除写了一半的新索引")
+    @DeleteMapping("/reindex")
+    public Result abortReindex() {
+        if (!itemReindexService.abortReindex()) {
+            return Result.fail("没有未完成的商品索引重建");
+        }
+        return Result.ok();
+    }
+
+    @ApiOperation("查询商品索引重建进度")
+    @GetMapping("/reindex")
+    public ItemReindexVO reindexProgress() {
+        return itemReindexService.getProgress();
+    }
 }
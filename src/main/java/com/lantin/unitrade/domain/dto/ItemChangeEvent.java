@@ -0,0 +1,19 @@
+package com.lantin.unitrade.domain.dto;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * 商品变更消息，商品新增、修改、删除、上下架的事务提交后发出，用于同步商品索引库
+ * 消息中不带商品数据，消费时再查数据库，所以重复消费、乱序消费都没有问题
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+
+@Data
+@Accessors(chain = true)
+public class ItemChangeEvent {
+    private Long itemId;
+    // 变更时间（毫秒），只用于排查问题，索引文档的版本号取同步时查到的商品更新时间
+    private Long time;
+}
@@ -0,0 +1,21 @@
+package com.lantin.unitrade.domain.dto;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * 商品游标分页查询条件，pageNo不起作用，翻页靠上一页返回的游标
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+@EqualsAndHashCode(callSuper = true)
+@Data
+@ApiModel(description = "商品游标分页查询条件")
+public class ItemCursorQuery extends ItemPageQuery {
+    @ApiModelProperty("上一页返回的游标，查询第一页时不传")
+    private String cursor;
+    @ApiModelProperty("是否在时间点（point in time）快照上翻页，翻页期间的数据变更不会导致重复或遗漏，只在第一页生效")
+    private Boolean pit = false;
+}
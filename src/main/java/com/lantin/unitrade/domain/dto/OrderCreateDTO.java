@@ -0,0 +1,20 @@
+package com.lantin.unitrade.domain.dto;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * 批量创建订单时的一个订单，对应一条下单成功消息
+ * @Author lantin
+ * @Date 2024/8/11
+ */
+
+@Data
+@Accessors(chain = true)
+public class OrderCreateDTO {
+    // 订单id，下单时由全局id生成器生成
+    private Long orderId;
+    // 下单用户，来自消息头
+    private UserDTO user;
+    private OrderFormDTO orderForm;
+}
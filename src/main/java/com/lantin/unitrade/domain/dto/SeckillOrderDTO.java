@@ -0,0 +1,19 @@
+package com.lantin.unitrade.domain.dto;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+/**
+ * 秒杀订单消息，由seckill.lua写入redis stream
+ * @Author lantin
+ * @Date 2024/8/11
+ */
+
+@Data
+@Accessors(chain = true)
+public class SeckillOrderDTO {
+    // 订单id
+    private Long id;
+    private Long userId;
+    private Long itemId;
+}
@@ -0,0 +1,43 @@
+package com.lantin.unitrade.domain.po;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * 库存写回记录表
+ * 每个库存流水批次写回数据库时在同一个事务中插入一条记录，重放批次时据此判断是否已经写回过
+ * @Author lantin
+ * @Date 2024/8/12
+ */
+
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("stock_flush_log")
+public class StockFlushLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 批次id
+     */
+    @TableId(value = "flush_id", type = IdType.INPUT)
+    private String flushId;
+
+    /**
+     * 本批次涉及的商品数
+     */
+    private Integer itemCount;
+
+    /**
+     * 创建时间
+     */
+    private LocalDateTime createTime;
+}
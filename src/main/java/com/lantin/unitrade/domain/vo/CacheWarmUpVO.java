@@ -0,0 +1,31 @@
+package com.lantin.unitrade.domain.vo;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存预热进度VO
+ * @Author lantin
+ * @Date 2024/8/8
+ */
+@Data
+@ApiModel(description = "缓存预热进度vo实体")
+public class CacheWarmUpVO {
+    @ApiModelProperty("状态，IDLE：未执行，RUNNING：执行中，DONE：已完成，FAILED：失败")
+    private String status;
+    @ApiModelProperty("已写入redis的商品数")
+    private Long loaded;
+    @ApiModelProperty("已完成的页数")
+    private Long pages;
+    @ApiModelProperty("写入失败的页数")
+    private Long failedPages;
+    @ApiModelProperty("开始时间")
+    private LocalDateTime startTime;
+    @ApiModelProperty("已耗时，单位毫秒")
+    private Long elapsedMs;
+    @ApiModelProperty("平均每秒写入的商品数")
+    private Long rowsPerSecond;
+}
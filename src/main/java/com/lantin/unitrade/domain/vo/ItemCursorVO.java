@@ -0,0 +1,24 @@
+package com.lantin.unitrade.domain.vo;
+
+import com.lantin.unitrade.domain.dto.ItemDTO;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 商品游标分页结果VO
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+@Data
+@ApiModel(description = "商品游标分页结果vo实体")
+public class ItemCursorVO {
+    @ApiModelProperty("总条数，只在第一页返回")
+    private Long total;
+    @ApiModelProperty("商品列表")
+    private List<ItemDTO> list;
+    @ApiModelProperty("下一页的游标，没有下一页时为空")
+    private String cursor;
+}
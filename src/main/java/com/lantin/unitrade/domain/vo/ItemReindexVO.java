@@ -0,0 +1,31 @@
+package com.lantin.unitrade.domain.vo;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * 商品索引重建进度VO
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+@Data
+@ApiModel(description = "商品索引重建进度vo实体")
+public class ItemReindexVO {
+    @ApiModelProperty("状态，IDLE：未执行，RUNNING：执行中，DONE：已完成，FAILED：失败，ABORTED：已取消，SKIPPED：其他节点正在执行，本节点跳过")
+    private String status;
+    @ApiModelProperty("正在写入的新索引名")
+    private String index;
+    @ApiModelProperty("已写入的文档数（包括之前中断的那次执行写入的）")
+    private Long indexed;
+    @ApiModelProperty("检查点，已经写入完成的最大商品id")
+    private Long lastId;
+    @ApiModelProperty("开始时间")
+    private LocalDateTime startTime;
+    @ApiModelProperty("已耗时，单位毫秒")
+    private Long elapsedMs;
+    @ApiModelProperty("本次执行平均每秒写入的文档数")
+    private Long docsPerSecond;
+}
@@ -0,0 +1,23 @@
+package com.lantin.unitrade.domain.vo;
+
+import com.lantin.unitrade.domain.dto.ItemDTO;
+import com.lantin.unitrade.domain.dto.PageDTO;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.util.Map;
+
+/**
+ * 商品搜索结果及过滤项VO，一次搜索同时返回
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+@EqualsAndHashCode(callSuper = true)
+@Data
+@ApiModel(description = "商品搜索结果及过滤项vo实体")
+public class ItemSearchVO extends PageDTO<ItemDTO> {
+    @ApiModelProperty("过滤项，category/brand -> 取值 -> 商品数，商品数已经考虑了其他过滤项的选中值")
+    private Map<String, Map<String, Long>> facets;
+}
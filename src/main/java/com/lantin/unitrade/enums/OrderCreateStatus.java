@@ -0,0 +1,46 @@
+package com.lantin.unitrade.enums;
+
+import com.lantin.unitrade.exception.BadRequestException;
+import lombok.Getter;
+
+/**
+ * 下单处理状态枚举
+ * 下单接口只负责预扣库存，订单由消息队列异步创建，客户端通过该状态轮询下单结果
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+
+@Getter
+public enum OrderCreateStatus {
+    RESERVED(1, "已预扣库存，订单创建中"),
+    CREATED(2, "订单已创建"),
+    FAILED(3, "下单失败"),
+    ;
+    int value;
+    String desc;
+
+    OrderCreateStatus(Integer value, String desc) {
+        this.value = value;
+        this.desc = desc;
+    }
+
+    public static OrderCreateStatus of(int value) {
+        switch (value) {
+            case 1:
+                return RESERVED;
+            case 2:
+                return CREATED;
+            case 3:
+                return FAILED;
+            default:
+                throw new BadRequestException("下单处理状态错误");
+        }
+    }
+
+    /**
+     * 是否是最终状态，不会再变化
+     */
+    public boolean isFinal() {
+        return this != RESERVED;
+    }
+}
@@ -0,0 +1,179 @@
+package com.lantin.unitrade.listener;
+
+import com.lantin.unitrade.config.OrderProperties;
+import com.lantin.unitrade.domain.dto.OrderCreateDTO;
+import com.lantin.unitrade.domain.dto.OrderFormDTO;
+import com.lantin.unitrade.domain.dto.UserDTO;
+import com.lantin.unitrade.enums.OrderCreateStatus;
+import com.lantin.unitrade.service.IOrderService;
+import com.lantin.unitrade.service.IOrderStatusService;
+import com.lantin.unitrade.service.IStockService;
+import com.lantin.unitrade.utils.CollUtils;
+import com.lantin.unitrade.utils.ExceptionUtils;
+import com.lantin.unitrade.utils.UserHolder;
+import com.rabbitmq.client.Channel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.annotation.Exchange;
+import org.springframework.amqp.rabbit.annotation.Queue;
+import org.springframework.amqp.rabbit.annotation.QueueBinding;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.lantin.unitrade.constant.MQConstants.*;
+
+/**
+ * 下单成功的消息监听类（批量消费）
+ * 一次拿到一批下单成功消息，在一个事务内创建所有订单，事务提交后逐条ack
+ * 整批失败时退化为逐条处理，找出导致失败的坏消息：失败的消息带上重试次数重新发到延迟交换机，按指数退避延迟后回到队列
+ * 非临时性错误重试次数用完后才丢弃并归还redis中预扣的库存，临时性错误（数据库连接失败等）一直重试，不会丢掉正常的订单
+ * @Author lantin
+ * @Date 2024/8/11
+ */
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "unitrade.order.batch.enabled", havingValue = "true")
+public class BatchCreateOrderListener {
+
+    private final IOrderService orderService;
+    private final IStockService stockService;
+    private final IOrderStatusService orderStatusService;
+    private final MessageConverter messageConverter;
+    private final RabbitTemplate rabbitTemplate;
+    private final OrderProperties orderProperties;
+
+    // 消息头：已经处理失败的次数
+    private static final String RETRY_HEADER = "x-retry-count";
+
+    // 重试消息经过延迟交换机回到同一个队列
+    @RabbitListener(bindings = {
+            @QueueBinding(
+                    value = @Queue(name = ORDER_SUCCESS_QUEUE, durable = "true"),
+                    exchange = @Exchange(name = ORDER_DIRECT_EXCHANGE),
+                    key = ORDER_SUCCESS_ROUTINGKEY),
+            @QueueBinding(
+                    value = @Queue(name = ORDER_SUCCESS_QUEUE, durable = "true"),
+                    exchange = @Exchange(name = DELAY_EXCHANGE, delayed = "true"),
+                    key = ORDER_SUCCESS_RETRY_ROUTINGKEY)
+    }, containerFactory = "batchListenerContainerFactory")
+    public void listenCreateOrderSuccess(List<Message> messages, Channel channel) throws IOException {
+        // 1. 转换消息，转换不了的消息重投也没用，直接丢弃
+        List<OrderCreateDTO> orders = new ArrayList<>(messages.size());
+        List<Message> converted = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            try {
+                orders.add(toOrder(message));
+                converted.add(message);
+            } catch (Exception e) {
+                log.error("下单成功消息无法解析，丢弃：{}", message, e);
+                channel.basicReject(deliveryTag(message), false);
+            }
+        }
+        if (CollUtils.isEmpty(orders)) {
+            return;
+        }
+
+        // 2. 整批在一个事务内创建，提交后逐条确认
+        try {
+            orderService.createOrders(orders);
+        } catch (Exception e) {
+            log.warn("批量创建订单失败，共{}条消息，改为逐条处理", orders.size(), e);
+            for (int i = 0; i < orders.size(); i++) {
+                handleSingle(orders.get(i), converted.get(i), channel);
+            }
+            return;
+        }
+        for (Message message : converted) {
+            channel.basicAck(deliveryTag(message), false);
+        }
+    }
+
+
+    /**
+     * 单独处理一条消息，隔离坏消息
+     * 失败次数记在消息头里，不依赖redelivered标记，重启或一次临时故障不会让正常的订单被丢弃
+     * @param order
+     * @param message
+     * @param channel
+     * @throws IOException
+     */
+    private void handleSingle(OrderCreateDTO order, Message message, Channel channel) throws IOException {
+        try {
+            orderService.createOrders(CollUtils.singletonList(order));
+            channel.basicAck(deliveryTag(message), false);
+        } catch (Exception e) {
+            int attempts = retryCount(message) + 1;
+            boolean isTransient = ExceptionUtils.isTransient(e);
+            if (isTransient || attempts < orderProperties.getBatch().getMaxAttempts()) {
+                // 临时性错误一直重试，其他错误在次数用完之前重试
+                log.error("创建订单失败，第{}次，稍后重试，订单id：{}", attempts, order.getOrderId(), e);
+                retry(message, attempts, channel);
+                return;
+            }
+            // 非临时性错误且重试次数用完，订单不会再被创建，丢弃消息并归还redis中预扣的库存
+            log.error("创建订单{}次失败，丢弃消息并归还预扣库存，订单id：{}", attempts, order.getOrderId(), e);
+            stockService.release(order.getOrderForm().getDetails(), order.getUser().getId());
+            orderStatusService.update(CollUtils.singletonList(order.getOrderId()), OrderCreateStatus.FAILED);
+            channel.basicReject(deliveryTag(message), false);
+        }
+    }
+
+
+    /**
+     * 带上失败次数重新发到延迟交换机，按指数退避延迟后回到队列，再确认原消息
+     * 重新发送失败时原消息重新入队，保证消息不丢
+     * @param message
+     * @param attempts 已经失败的次数
+     * @param channel
+     * @throws IOException
+     */
+    private void retry(Message message, int attempts, Channel channel) throws IOException {
+        OrderProperties.Batch batch = orderProperties.getBatch();
+        long delay = Math.min(batch.getRetryBackoff().toMillis() << Math.min(attempts - 1, 20),
+                batch.getMaxRetryBackoff().toMillis());
+        Message retry = MessageBuilder.fromMessage(message).setHeader(RETRY_HEADER, attempts).build();
+        retry.getMessageProperties().setDelay((int) delay);
+        try {
+            rabbitTemplate.send(DELAY_EXCHANGE, ORDER_SUCCESS_RETRY_ROUTINGKEY, retry);
+        } catch (Exception e) {
+            log.error("重试消息发送失败，原消息重新入队", e);
+            channel.basicNack(deliveryTag(message), false, true);
+            return;
+        }
+        channel.basicAck(deliveryTag(message), false);
+    }
+
+
+    private int retryCount(Message message) {
+        Object count = message.getMessageProperties().getHeader(RETRY_HEADER);
+        return count instanceof Number ? ((Number) count).intValue() : 0;
+    }
+
+
+    private OrderCreateDTO toOrder(Message message) {
+        try {
+            // 消息转换器会把消息头中的用户信息保存到ThreadLocal，批量消费时用不到，用完清掉
+            OrderFormDTO orderForm = (OrderFormDTO) messageConverter.fromMessage(message);
+            UserDTO user = message.getMessageProperties().getHeader("user-info");
+            Long orderId = message.getMessageProperties().getHeader("order-id");
+            return new OrderCreateDTO().setOrderId(orderId).setUser(user).setOrderForm(orderForm);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    private long deliveryTag(Message message) {
+        return message.getMessageProperties().getDeliveryTag();
+    }
+}
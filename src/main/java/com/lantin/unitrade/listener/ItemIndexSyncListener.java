@@ -0,0 +1,185 @@
+package com.lantin.unitrade.listener;
+
+import com.lantin.unitrade.config.SearchProperties;
+import com.lantin.unitrade.domain.dto.ItemChangeEvent;
+import com.lantin.unitrade.service.IItemIndexService;
+import com.lantin.unitrade.utils.CollUtils;
+import com.lantin.unitrade.utils.ExceptionUtils;
+import com.rabbitmq.client.Channel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.annotation.Exchange;
+import org.springframework.amqp.rabbit.annotation.Queue;
+import org.springframework.amqp.rabbit.annotation.QueueBinding;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.lantin.unitrade.constant.MQConstants.*;
+
+/**
+ * 商品变更的消息监听类（批量消费）
+ * 一批消息中同一商品的多次变更合并为一次，整批用一个bulk请求同步到索引库，版本号由同步时查到的数据决定，重复同步是幂等的
+ * 整批失败时退化为逐个商品同步，找出导致失败的商品：失败的消息带上重试次数重新发到延迟交换机，按指数退避延迟后回到队列，
+ * 非临时性错误重试次数用完后移入死信队列，不会让一条坏消息把整批消息无限重新入队
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ItemIndexSyncListener {
+
+    private final IItemIndexService itemIndexService;
+    private final MessageConverter messageConverter;
+    private final RabbitTemplate rabbitTemplate;
+    private final SearchProperties searchProperties;
+
+    // 消息头：已经处理失败的次数
+    private static final String RETRY_HEADER = "x-retry-count";
+
+    // 重试消息经过延迟交换机回到同一个队列
+    @RabbitListener(bindings = {
+            @QueueBinding(
+                    value = @Queue(name = ITEM_INDEX_SYNC_QUEUE, durable = "true"),
+                    exchange = @Exchange(name = ITEM_DIRECT_EXCHANGE),
+                    key = ITEM_CHANGE_ROUTINGKEY),
+            @QueueBinding(
+                    value = @Queue(name = ITEM_INDEX_SYNC_QUEUE, durable = "true"),
+                    exchange = @Exchange(name = DELAY_EXCHANGE, delayed = "true"),
+                    key = ITEM_CHANGE_RETRY_ROUTINGKEY)
+    }, containerFactory = "searchSyncListenerContainerFactory")
+    public void listenItemChange(List<Message> messages, Channel channel) throws IOException {
+        // 1. 按商品合并消息，解析不了的消息重投也没用，直接移入死信队列
+        Map<Long, List<Message>> changes = new LinkedHashMap<>();
+        for (Message message : messages) {
+            try {
+                ItemChangeEvent event = (ItemChangeEvent) messageConverter.fromMessage(message);
+                changes.computeIfAbsent(event.getItemId(), id -> new ArrayList<>()).add(message);
+            } catch (Exception e) {
+                log.error("商品变更消息无法解析，移入死信队列：{}", message, e);
+                deadLetter(message, channel);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        log.debug("同步商品索引，消息数：{}，商品数：{}", messages.size(), changes.size());
+
+        // 2. 整批同步，成功后逐条确认
+        try {
+            itemIndexService.sync(changes.keySet());
+        } catch (Exception e) {
+            log.warn("批量同步商品索引失败，共{}个商品，改为逐个同步", changes.size(), e);
+            changes.forEach((itemId, itemMessages) -> syncSingle(itemId, itemMessages, channel));
+            return;
+        }
+        for (List<Message> itemMessages : changes.values()) {
+            for (Message message : itemMessages) {
+                channel.basicAck(deliveryTag(message), false);
+            }
+        }
+    }
+
+
+    /**
+     * 单独同步一个商品，隔离坏消息
+     * @param itemId
+     * @param messages 这个商品的所有变更消息
+     * @param channel
+     */
+    private void syncSingle(Long itemId, List<Message> messages, Channel channel) {
+        try {
+            itemIndexService.sync(CollUtils.singletonList(itemId));
+            for (Message message : messages) {
+                channel.basicAck(deliveryTag(message), false);
+            }
+        } catch (Exception e) {
+            // es、数据库连接失败或es限流、内部错误属于临时性错误，一直重试
+            boolean isTransient = ExceptionUtils.isTransient(e) || e instanceof IOException;
+            for (Message message : messages) {
+                handleFailure(itemId, message, channel, isTransient, e);
+            }
+        }
+    }
+
+
+    private void handleFailure(Long itemId, Message message, Channel channel, boolean isTransient, Exception e) {
+        try {
+            int attempts = retryCount(message) + 1;
+            if (isTransient || attempts < searchProperties.getSync().getMaxAttempts()) {
+                log.error("同步商品索引失败，第{}次，稍后重试，商品id：{}", attempts, itemId, e);
+                retry(message, attempts, channel);
+                return;
+            }
+            log.error("同步商品索引{}次失败，移入死信队列，商品id：{}", attempts, itemId, e);
+            deadLetter(message, channel);
+        } catch (IOException ex) {
+            // 通道已经不可用，未确认的消息会在连接恢复后重新投递
+            log.error("处理商品变更消息失败，商品id：{}", itemId, ex);
+        }
+    }
+
+
+    /**
+     * 带上失败次数重新发到延迟交换机，按指数退避延迟后回到队列，再确认原消息
+     * 重新发送失败时原消息重新入队，保证消息不丢
+     * @param message
+     * @param attempts 已经失败的次数
+     * @param channel
+     * @throws IOException
+     */
+    private void retry(Message message, int attempts, Channel channel) throws IOException {
+        SearchProperties.Sync sync = searchProperties.getSync();
+        long delay = Math.min(sync.getRetryBackoff().toMillis() << Math.min(attempts - 1, 20),
+                sync.getMaxRetryBackoff().toMillis());
+        Message retry = MessageBuilder.fromMessage(message).setHeader(RETRY_HEADER, attempts).build();
+        retry.getMessageProperties().setDelay((int) delay);
+        try {
+            rabbitTemplate.send(DELAY_EXCHANGE, ITEM_CHANGE_RETRY_ROUTINGKEY, retry);
+        } catch (Exception e) {
+            log.error("重试消息发送失败，原消息重新入队", e);
+            channel.basicNack(deliveryTag(message), false, true);
+            return;
+        }
+        channel.basicAck(deliveryTag(message), false);
+    }
+
+
+    /**
+     * 发到死信队列后确认原消息，发送失败时原消息重新入队
+     * @param message
+     * @param channel
+     * @throws IOException
+     */
+    private void deadLetter(Message message, Channel channel) throws IOException {
+        try {
+            rabbitTemplate.send(ITEM_DIRECT_EXCHANGE, ITEM_CHANGE_DEAD_ROUTINGKEY, message);
+        } catch (Exception e) {
+            log.error("死信消息发送失败，原消息重新入队", e);
+            channel.basicNack(deliveryTag(message), false, true);
+            return;
+        }
+        channel.basicAck(deliveryTag(message), false);
+    }
+
+
+    private int retryCount(Message message) {
+        Object count = message.getMessageProperties().getHeader(RETRY_HEADER);
+        return count instanceof Number ? ((Number) count).intValue() : 0;
+    }
+
+    private long deliveryTag(Message message) {
+        return message.getMessageProperties().getDeliveryTag();
+    }
+}
@@ -1,13 +1,8 @@
 package com.lantin.unitrade.listener;
 
 
-import com.lantin.unitrade.constant.MQConstants;
-import com.lantin.unitrade.domain.dto.PayOrderDTO;
-import com.lantin.unitrade.domain.po.Order;
-import com.lantin.unitrade.enums.OrderStatus;
-import com.lantin.unitrade.enums.PayStatus;
 import com.lantin.unitrade.service.IOrderService;
-import com.lantin.unitrade.service.IPayOrderService;
+import com.lantin.unitrade.utils.CollUtils;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.Exchange;
@@ -21,6 +16,7 @@ import static com.lantin.unitrade.constant.MQConstants.*;
 /**
  * 订单服务的延迟消息监听器
  * 当订单创建成功后，会发送延迟消息，该监听器监听到延迟消息后会主动向支付服务查询支付状态
+ * 现在下单时不再发送延迟消息，改为由OrderTimeoutListener批量处理，这里只处理升级前已经发出的延迟消息
  * @Author lantin
  * @Date 2024/8/1
  */
@@ -31,7 +27,6 @@ import static com.lantin.unitrade.constant.MQConstants.*;
 public class OrderDelayMessageListener {
 
     private final IOrderService orderService;
-    private final IPayOrderService payOrderService;
 
     /**
      * 监听延迟消息，主动向支付服务查询支付状态
@@ -44,22 +39,7 @@ public class OrderDelayMessageListener {
     ))
     public void listenOrderDelayMessage(Long orderId) {
         log.info("已监听到延迟消息，准备确认支付状态...");
-        // 1. 查询数据库中的该订单
-        Order order = orderService.getById(orderId);
-        // 2. 检测订单状态，判断是否已支付
-        if (order == null || !OrderStatus.UNPAID.equalsValue(order.getStatus())) {
-            // 订单不存在或已经支付，直接结束（可能之前就已经支付完成业务单被改成后续状态）
-            return;
-        }
-        // 3. 未支付，需要主动向支付服务查询支付流水状态,如果支付单
-        PayOrderDTO payOrder = payOrderService.queryPayOrderByBizOrderNo(orderId);
-        // 4. 判断是否支付
-        if (payOrder != null && PayStatus.TRADE_SUCCESS.equalsValue(payOrder.getStatus())) {
-            // 4.1 已支付（只是没有收到支付服务发来的消息），更新业务单状态为已支付
-            orderService.markOrderPaySuccess(orderId);
-        } else {
-            // 4.2 未支付，取消订单，恢复库存
-            orderService.cancelOrder(orderId);
-        }
+        // 和支付超时的批量处理逻辑相同：已支付的标记为已支付，未支付的取消订单并恢复库存
+        orderService.closeTimeoutOrders(CollUtils.singletonList(orderId));
     }
 }
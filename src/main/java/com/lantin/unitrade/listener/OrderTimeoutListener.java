@@ -0,0 +1,94 @@
+package com.lantin.unitrade.listener;
+
+import com.lantin.unitrade.config.OrderProperties;
+import com.lantin.unitrade.service.IOrderService;
+import com.lantin.unitrade.utils.CollUtils;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.lantin.unitrade.constant.RedisConstants.ORDER_TIMEOUT_KEY;
+import static com.lantin.unitrade.constant.RedisConstants.ORDER_TIMEOUT_PROCESSING_KEY;
+
+/**
+ * 订单支付超时监听类
+ * 下单时把订单按超时时间登记到zset order:timeout 中，这里定期用lua脚本认领一批已经超时的订单，批量检测支付状态并取消
+ * 认领是原子的，多个节点可以同时轮询；认领后在租约内没有处理完的订单会被重新认领，不会丢失
+ * @Author lantin
+ * @Date 2024/8/12
+ */
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class OrderTimeoutListener {
+
+    private final IOrderService orderService;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final OrderProperties orderProperties;
+
+    // 认领超时订单的lua脚本
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+
+    /**
+     * 定期处理超时订单，一次轮询中连续处理，直到没有超时订单或者达到最大批数
+     */
+    @Scheduled(fixedDelayString = "${unitrade.order.timeout.poll-interval-ms:1000}")
+    public void listenOrderTimeout() {
+        OrderProperties.Timeout config = orderProperties.getTimeout();
+        for (int i = 0; i < config.getMaxBatches(); i++) {
+            List<Long> orderIds;
+            try {
+                orderIds = claim(config);
+            } catch (Exception e) {
+                log.error("认领超时订单失败", e);
+                return;
+            }
+            if (CollUtils.isEmpty(orderIds)) {
+                return;
+            }
+            try {
+                orderService.closeTimeoutOrders(orderIds);
+                // 处理完成，删除认领记录
+                stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_PROCESSING_KEY,
+                        orderIds.stream().map(Object::toString).toArray());
+            } catch (Exception e) {
+                // 租约到期后会被重新认领
+                log.error("处理超时订单失败，共{}个订单", orderIds.size(), e);
+                return;
+            }
+            if (orderIds.size() < config.getBatchSize()) {
+                return;
+            }
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private List<Long> claim(OrderProperties.Timeout config) {
+        long now = System.currentTimeMillis();
+        List<Object> ids = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                Arrays.asList(ORDER_TIMEOUT_KEY, ORDER_TIMEOUT_PROCESSING_KEY),
+                String.valueOf(now), config.getBatchSize().toString(),
+                String.valueOf(now + config.getLease().toMillis()));
+        if (CollUtils.isEmpty(ids)) {
+            return CollUtils.emptyList();
+        }
+        return ids.stream().map(id -> Long.valueOf(id.toString())).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,308 @@
+package com.lantin.unitrade.listener;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import com.lantin.unitrade.config.SeckillProperties;
+import com.lantin.unitrade.domain.dto.OrderDetailDTO;
+import com.lantin.unitrade.domain.dto.SeckillOrderDTO;
+import com.lantin.unitrade.enums.OrderCreateStatus;
+import com.lantin.unitrade.service.IOrderService;
+import com.lantin.unitrade.service.IOrderStatusService;
+import com.lantin.unitrade.service.IStockService;
+import com.lantin.unitrade.utils.CollUtils;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.lantin.unitrade.constant.RedisConstants.*;
+
+/**
+ * 秒杀订单消息监听类
+ * 以消费者组的方式从redis stream中批量读取seckill.lua写入的秒杀订单消息，批量创建订单后再确认
+ * 创建失败的消息留在pending列表（PEL）中，定期认领空闲超时的pending消息（包括已经挂掉的消费者的）重新处理，
+ * 认领到的消息逐条处理，避免一条坏消息拖累整批，投递次数超过上限的移入死信队列并归还库存
+ * 写入时不裁剪stream，由这里按最早的pending消息裁剪，保证裁掉的都是已确认的消息
+ * @Author lantin
+ * @Date 2024/8/11
+ */
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SeckillOrderListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IOrderService orderService;
+    private final IStockService stockService;
+    private final IOrderStatusService orderStatusService;
+    private final SeckillProperties seckillProperties;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("seckill-order-", true));
+    private volatile boolean running = true;
+    private String consumerName;
+    private long lastClaimTime;
+
+
+    @PostConstruct
+    public void init() {
+        if (!Boolean.TRUE.equals(seckillProperties.getConsumerEnabled())) {
+            return;
+        }
+        consumerName = consumerName();
+        createGroupIfAbsent();
+        executor.submit(this::consume);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(seckillProperties.getBlock().toMillis() * 2, TimeUnit.MILLISECONDS);
+    }
+
+
+    private void consume() {
+        log.info("秒杀订单消费者{}已启动", consumerName);
+        while (running) {
+            try {
+                // 1. 批量读取新消息 xreadgroup group g1 c1 count n block 2000 streams stream.orders >
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_STREAM_GROUP, consumerName),
+                        StreamReadOptions.empty()
+                                .count(seckillProperties.getBatchSize())
+                                .block(seckillProperties.getBlock()),
+                        StreamOffset.create(SECKILL_STREAM_KEY, ReadOffset.lastConsumed()));
+                if (CollUtils.isNotEmpty(records)) {
+                    // 2. 批量创建订单，成功后确认
+                    handleBatch(records);
+                }
+                // 3. 定期处理pending消息
+                if (System.currentTimeMillis() - lastClaimTime > seckillProperties.getClaimInterval().toMillis()) {
+                    lastClaimTime = System.currentTimeMillis();
+                    handlePending();
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("处理秒杀订单消息异常", e);
+                sleep(1000);
+            }
+        }
+    }
+
+
+    /**
+     * 一批消息在一个事务内创建订单，失败时整批留在pending列表中，由handlePending逐条重试
+     * @param records
+     */
+    private void handleBatch(List<MapRecord<String, Object, Object>> records) {
+        List<SeckillOrderDTO> orders = new ArrayList<>(records.size());
+        RecordId[] ids = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            orders.add(toOrder(records.get(i).getValue()));
+            ids[i] = records.get(i).getId();
+        }
+        try {
+            orderService.createSeckillOrders(orders);
+        } catch (Exception e) {
+            log.error("批量创建秒杀订单失败，共{}条消息，等待重试", records.size(), e);
+            return;
+        }
+        ack(ids);
+    }
+
+
+    /**
+     * 处理pending列表中空闲超时的消息：认领后逐条重新处理，超过最大投递次数的移入死信队列
+     * 处理完后裁剪stream
+     */
+    private void handlePending() {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP,
+                Range.unbounded(), seckillProperties.getBatchSize());
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(seckillProperties.getClaimMinIdle()) < 0) {
+                continue;
+            }
+            // 认领，xclaim会增加投递次数，并且只有空闲时间仍然超过阈值才会成功，避免多个消费者重复认领
+            List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                    connection.streamCommands().xClaimJustId(SECKILL_STREAM_KEY.getBytes(), SECKILL_STREAM_GROUP,
+                            consumerName, XClaimOptions.minIdle(seckillProperties.getClaimMinIdle()).ids(message.getId())));
+            if (CollUtils.isEmpty(claimed)) {
+                // 被其他消费者认领了
+                continue;
+            }
+            // pending里的投递次数是认领之前的，认领成功后本次算一次新的投递
+            long deliveries = message.getTotalDeliveryCount() + 1;
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(SECKILL_STREAM_KEY, Range.closed(message.getIdAsString(), message.getIdAsString()));
+            if (CollUtils.isEmpty(records)) {
+                // 消息已经被删除了（如手动裁剪），只能从索引中找回订单信息，按死信处理
+                deadLetterMissing(message.getId());
+                continue;
+            }
+            MapRecord<String, Object, Object> record = records.get(0);
+            if (deliveries > seckillProperties.getMaxDeliveries()) {
+                deadLetter(record.getId(), record.getValue());
+                continue;
+            }
+            try {
+                orderService.createSeckillOrders(CollUtils.singletonList(toOrder(record.getValue())));
+                ack(record.getId());
+            } catch (Exception e) {
+                log.error("处理pending秒杀订单消息失败，消息id：{}，已投递{}次", record.getId(), deliveries, e);
+            }
+        }
+        trim();
+    }
+
+
+    /**
+     * 裁剪stream中已确认的消息
+     * 有pending消息时只裁剪最早的pending消息之前的部分，没有时裁剪到消费者组最后读取的位置，之后的消息还没有被读取
+     * xtrim stream.orders minid ~ id，近似裁剪只会少裁不会多裁
+     */
+    private void trim() {
+        if (!Boolean.TRUE.equals(seckillProperties.getTrimEnabled())) {
+            return;
+        }
+        try {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP);
+            String minId = null;
+            if (summary != null && summary.getTotalPendingMessages() > 0) {
+                minId = summary.minMessageId();
+            } else {
+                minId = stringRedisTemplate.opsForStream().groups(SECKILL_STREAM_KEY).stream()
+                        .filter(group -> SECKILL_STREAM_GROUP.equals(group.groupName()))
+                        .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                        .findFirst().orElse(null);
+            }
+            if (StrUtil.isBlank(minId) || "0-0".equals(minId)) {
+                return;
+            }
+            String threshold = minId;
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM",
+                    SECKILL_STREAM_KEY.getBytes(), "MINID".getBytes(), "~".getBytes(), threshold.getBytes()));
+        } catch (Exception e) {
+            log.warn("裁剪秒杀订单消息队列失败", e);
+        }
+    }
+
+
+    /**
+     * 确认消息并删除消息索引，在一个管道中完成
+     * @param ids
+     */
+    private void ack(RecordId... ids) {
+        byte[][] fields = new byte[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            fields[i] = ids[i].getValue().getBytes();
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            // ack确认 xack stream.orders g1 id...
+            connection.streamCommands().xAck(SECKILL_STREAM_KEY.getBytes(), SECKILL_STREAM_GROUP, ids);
+            connection.hashCommands().hDel(SECKILL_STREAM_INDEX_KEY.getBytes(), fields);
+            return null;
+        });
+    }
+
+
+    /**
+     * pending列表中有id但消息本身已经不存在了，从消息索引中找回订单信息后按死信处理
+     * 索引也没有的只能确认掉，并记录下来人工处理
+     * @param id
+     */
+    private void deadLetterMissing(RecordId id) {
+        Object indexed = stringRedisTemplate.opsForHash().get(SECKILL_STREAM_INDEX_KEY, id.getValue());
+        if (indexed == null) {
+            log.error("秒杀订单消息{}已不存在且没有索引，无法归还库存，需要人工处理", id);
+            ack(id);
+            return;
+        }
+        String[] parts = indexed.toString().split(":");
+        Map<Object, Object> value = new HashMap<>(4);
+        value.put("userId", parts[0]);
+        value.put("itemId", parts[1]);
+        value.put("id", parts[2]);
+        deadLetter(id, value);
+    }
+
+
+    /**
+     * 多次处理失败的消息移入死信队列并确认，同时归还库存和下单资格，用户可以重新抢购
+     * @param id
+     * @param value
+     */
+    private void deadLetter(RecordId id, Map<Object, Object> value) {
+        log.error("秒杀订单消息多次处理失败，移入死信队列：{} {}", id, value);
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                .in(SECKILL_STREAM_DLQ_KEY)
+                .ofMap(value));
+        ack(id);
+        SeckillOrderDTO order = toOrder(value);
+        stockService.release(CollUtils.singletonList(new OrderDetailDTO().setItemId(order.getItemId()).setNum(1)),
+                order.getUserId());
+        stringRedisTemplate.opsForSet().remove(SECKILL_ORDER_KEY + order.getItemId(), order.getUserId().toString());
+        orderStatusService.update(CollUtils.singletonList(order.getId()), OrderCreateStatus.FAILED);
+    }
+
+
+    private SeckillOrderDTO toOrder(Map<Object, Object> value) {
+        return new SeckillOrderDTO()
+                .setId(Long.valueOf(value.get("id").toString()))
+                .setUserId(Long.valueOf(value.get("userId").toString()))
+                .setItemId(Long.valueOf(value.get("itemId").toString()));
+    }
+
+
+    /**
+     * 创建消费者组，stream不存在时一起创建，已存在时忽略
+     */
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.streamCommands().xGroupCreate(SECKILL_STREAM_KEY.getBytes(), SECKILL_STREAM_GROUP,
+                            ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            if (!StrUtil.contains(e.getMessage(), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 消费者名用主机名，重启后还能认领到自己之前没有确认的消息
+     */
+    private String consumerName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "c1";
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,44 +1,108 @@
 package com.lantin.unitrade.listener;
 
+import com.lantin.unitrade.config.OrderProperties;
 import com.lantin.unitrade.domain.dto.OrderFormDTO;
+import com.lantin.unitrade.domain.dto.UserDTO;
+import com.lantin.unitrade.enums.OrderCreateStatus;
 import com.lantin.unitrade.service.IOrderService;
+import com.lantin.unitrade.service.IOrderStatusService;
+import com.lantin.unitrade.service.IStockService;
+import com.lantin.unitrade.utils.CollUtils;
+import com.lantin.unitrade.utils.ExceptionUtils;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
 import org.springframework.amqp.rabbit.annotation.Exchange;
 import org.springframework.amqp.rabbit.annotation.Queue;
 import org.springframework.amqp.rabbit.annotation.QueueBinding;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import static com.lantin.unitrade.constant.MQConstants.*;
-import static com.lantin.unitrade.constant.RedisConstants.*;
 
 /**
  * 下单成功的消息监听类
- * 监听下单成功消息，完成数据库表创建订单记录并扣减数据库商品库存
+ * 监听下单成功消息，完成数据库表创建订单记录（数据库库存由库存流水异步写回）
+ * 创建失败时和批量消费一样：带上重试次数发到延迟交换机，按指数退避延迟后回到队列，
+ * 非临时性错误重试次数用完后丢弃消息、归还redis中预扣的库存并把下单状态改为失败，临时性错误一直重试
  * @Author lantin
  * @Date 2024/8/1
  */
 
+@Slf4j
 @Component
 @RequiredArgsConstructor
+@ConditionalOnProperty(name = "unitrade.order.batch.enabled", havingValue = "false", matchIfMissing = true)  // 开启批量消费时由BatchCreateOrderListener处理
 public class createOrderListener {
 
     private final IOrderService orderService;
+    private final IStockService stockService;
+    private final IOrderStatusService orderStatusService;
+    private final RabbitTemplate rabbitTemplate;
+    private final OrderProperties orderProperties;
+
+    // 消息头：已经处理失败的次数
+    private static final String RETRY_HEADER = "x-retry-count";
 
     /**
-     * 监听下单成功消息，完成数据库表创建订单记录并扣减数据库商品库存
+     * 监听下单成功消息，完成数据库表创建订单记录
+     * 重试消息经过延迟交换机回到同一个队列
      * @param
      */
-    @RabbitListener(bindings = @QueueBinding(   // 基于注解方式声明队列和交换机并完成绑定
-            value = @Queue(name = ORDER_SUCCESS_QUEUE, durable = "true"),
-            exchange = @Exchange(name = ORDER_DIRECT_EXCHANGE),    // 交换机默认类型就是DIRECT，默认是持久化的
-            key = ORDER_SUCCESS_ROUTINGKEY  // routingKey
-    ))
+    @RabbitListener(bindings = {
+            @QueueBinding(   // 基于注解方式声明队列和交换机并完成绑定
+                    value = @Queue(name = ORDER_SUCCESS_QUEUE, durable = "true"),
+                    exchange = @Exchange(name = ORDER_DIRECT_EXCHANGE),    // 交换机默认类型就是DIRECT，默认是持久化的
+                    key = ORDER_SUCCESS_ROUTINGKEY),  // routingKey
+            @QueueBinding(
+                    value = @Queue(name = ORDER_SUCCESS_QUEUE, durable = "true"),
+                    exchange = @Exchange(name = DELAY_EXCHANGE, delayed = "true"),
+                    key = ORDER_SUCCESS_RETRY_ROUTINGKEY)
+    })
     public void listenCreateOrderSuccess(Message message, OrderFormDTO orderFormDTO) {
         // 1. 获取消息头中的订单id（用户id在消息转换器中就保存好了这里就不用再保存到ThreadLocal）
         Long orderId = message.getMessageProperties().getHeader("order-id");
-        // 2. 调用createOrder方法创建订单并扣减库存
-        orderService.createOrder(orderFormDTO, orderId);
+        // 2. 调用createOrder方法创建订单
+        try {
+            orderService.createOrder(orderFormDTO, orderId);
+        } catch (Exception e) {
+            int attempts = retryCount(message) + 1;
+            if (ExceptionUtils.isTransient(e) || attempts < orderProperties.getBatch().getMaxAttempts()) {
+                // 临时性错误一直重试，其他错误在次数用完之前重试
+                log.error("创建订单失败，第{}次，稍后重试，订单id：{}", attempts, orderId, e);
+                retry(message, attempts);
+                return;
+            }
+            // 非临时性错误且重试次数用完，订单不会再被创建，确认消息并归还redis中预扣的库存
+            log.error("创建订单{}次失败，丢弃消息并归还预扣库存，订单id：{}", attempts, orderId, e);
+            UserDTO user = message.getMessageProperties().getHeader("user-info");
+            stockService.release(orderFormDTO.getDetails(), user.getId());
+            orderStatusService.update(CollUtils.singletonList(orderId), OrderCreateStatus.FAILED);
+        }
+    }
+
+
+    /**
+     * 带上失败次数重新发到延迟交换机，按指数退避延迟后回到队列
+     * 重新发送失败时异常抛给容器，原消息重新入队，保证消息不丢
+     * @param message
+     * @param attempts 已经失败的次数
+     */
+    private void retry(Message message, int attempts) {
+        OrderProperties.Batch batch = orderProperties.getBatch();
+        long delay = Math.min(batch.getRetryBackoff().toMillis() << Math.min(attempts - 1, 20),
+                batch.getMaxRetryBackoff().toMillis());
+        Message retry = MessageBuilder.fromMessage(message).setHeader(RETRY_HEADER, attempts).build();
+        retry.getMessageProperties().setDelay((int) delay);
+        rabbitTemplate.send(DELAY_EXCHANGE, ORDER_SUCCESS_RETRY_ROUTINGKEY, retry);
+    }
+
+
+    private int retryCount(Message message) {
+        Object count = message.getMessageProperties().getHeader(RETRY_HEADER);
+        return count instanceof Number ? ((Number) count).intValue() : 0;
     }
 }
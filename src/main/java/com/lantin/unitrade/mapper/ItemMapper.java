@@ -3,11 +3,27 @@ package com.lantin.unitrade.mapper;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.lantin.unitrade.domain.dto.OrderDetailDTO;
 import com.lantin.unitrade.domain.po.Item;
+import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Update;
 
+import java.util.Map;
+
 
 public interface ItemMapper extends BaseMapper<Item> {
 
     @Update("UPDATE item SET stock = stock - #{num} WHERE id = #{itemId}")
     void updateStock(OrderDetailDTO orderDetail);
+
+    /**
+     * 一条语句给多个商品的库存加上各自的变化量（可以是负数）
+     * @param deltas 商品id -> 库存变化量
+     * @return
+     */
+    @Update("<script>" +
+            "UPDATE item SET stock = stock + CASE id " +
+            "<foreach collection='deltas' index='id' item='delta'>WHEN #{id} THEN #{delta} </foreach>" +
+            "END WHERE id IN " +
+            "<foreach collection='deltas' index='id' open='(' separator=',' close=')'>#{id}</foreach>" +
+            "</script>")
+    int addStock(@Param("deltas") Map<Long, Long> deltas);
 }
@@ -2,8 +2,19 @@ package com.lantin.unitrade.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.lantin.unitrade.domain.po.OrderDetail;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 
 public interface OrderDetailMapper extends BaseMapper<OrderDetail> {
 
+    @Insert("<script>" +
+            "INSERT INTO order_detail (order_id, item_id, num, name, spec, price, image) VALUES " +
+            "<foreach collection='details' item='d' separator=','>" +
+            "(#{d.orderId}, #{d.itemId}, #{d.num}, #{d.name}, #{d.spec}, #{d.price}, #{d.image})" +
+            "</foreach>" +
+            "</script>")
+    int insertBatch(@Param("details") List<OrderDetail> details);
 }
@@ -2,8 +2,19 @@ package com.lantin.unitrade.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.lantin.unitrade.domain.po.Order;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 
 public interface OrderMapper extends BaseMapper<Order> {
 
+    @Insert("<script>" +
+            "INSERT INTO `order` (id, total_fee, payment_type, user_id, status) VALUES " +
+            "<foreach collection='orders' item='o' separator=','>" +
+            "(#{o.id}, #{o.totalFee}, #{o.paymentType}, #{o.userId}, #{o.status})" +
+            "</foreach>" +
+            "</script>")
+    int insertBatch(@Param("orders") List<Order> orders);
 }
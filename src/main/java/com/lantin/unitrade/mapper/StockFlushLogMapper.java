@@ -0,0 +1,9 @@
+package com.lantin.unitrade.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.lantin.unitrade.domain.po.StockFlushLog;
+
+
+public interface StockFlushLogMapper extends BaseMapper<StockFlushLog> {
+
+}
@@ -0,0 +1,23 @@
+package com.lantin.unitrade.service;
+
+import com.lantin.unitrade.domain.vo.CacheWarmUpVO;
+
+/**
+ * 缓存预热服务
+ * @Author lantin
+ * @Date 2024/8/8
+ */
+public interface ICacheWarmUpService {
+
+    /**
+     * 异步开始商品缓存预热
+     * @return 已经有预热在执行时返回false
+     */
+    boolean startItemWarmUp();
+
+    /**
+     * 查询预热进度
+     * @return
+     */
+    CacheWarmUpVO getProgress();
+}
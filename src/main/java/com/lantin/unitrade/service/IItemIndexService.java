@@ -0,0 +1,20 @@
+package com.lantin.unitrade.service;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * 商品索引同步服务，把数据库中的商品同步到elasticsearch
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+public interface IItemIndexService {
+
+    /**
+     * 按数据库中的最新数据同步一批商品的索引文档，在售的写入，不存在或不在售的删除
+     * 文档版本号取查到的商品的更新时间，比索引中已有版本小的写入会被忽略
+     * @param itemIds
+     * @throws IOException es不可用或者返回了可以重试的错误
+     */
+    void sync(Collection<Long> itemIds) throws IOException;
+}
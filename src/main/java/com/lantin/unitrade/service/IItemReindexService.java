@@ -0,0 +1,30 @@
+package com.lantin.unitrade.service;
+
+import com.lantin.unitrade.domain.vo.ItemReindexVO;
+
+/**
+ * 商品索引全量重建
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+public interface IItemReindexService {
+
+    /**
+     * 异步开始重建商品索引，有未完成的重建时从检查点继续
+     * @return 已经在执行中返回false
+     */
+    boolean startReindex();
+
+    /**
+     * 取消重建，删除写了一半的新索引和检查点，增量同步随即停止双写
+     * 正在执行的重建（包括其他节点上的）在下一页发现检查点被删除后退出
+     * @return 没有未完成的重建返回false
+     */
+    boolean abortReindex();
+
+    /**
+     * 查询重建进度
+     * @return
+     */
+    ItemReindexVO getProgress();
+}
@@ -10,6 +10,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 
 public interface IItemService extends IService<Item> {
@@ -22,7 +23,11 @@ public interface IItemService extends IService<Item> {
 
     void restoreStock(List<OrderDetailDTO> items);
 
+    boolean applyStockDeltas(String flushId, Map<Long, Long> deltas);
+
     Result update(Item item);
 
     void saveItem(ItemDTO item);
+
+    void updateItemStatus(Long id, Integer status);
 }
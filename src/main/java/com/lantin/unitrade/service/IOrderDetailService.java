@@ -3,7 +3,10 @@ package com.lantin.unitrade.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.lantin.unitrade.domain.po.OrderDetail;
 
+import java.util.List;
+
 
 public interface IOrderDetailService extends IService<OrderDetail> {
 
+    void insertBatch(List<OrderDetail> details);
 }
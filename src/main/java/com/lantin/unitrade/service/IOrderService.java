@@ -1,17 +1,37 @@
 package com.lantin.unitrade.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.lantin.unitrade.domain.dto.OrderCreateDTO;
 import com.lantin.unitrade.domain.dto.OrderFormDTO;
+import com.lantin.unitrade.domain.dto.SeckillOrderDTO;
 import com.lantin.unitrade.domain.po.Order;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 
 public interface IOrderService extends IService<Order> {
 
     Long createOrder(OrderFormDTO orderFormDTO, Long orderId);
 
+    void createOrders(List<OrderCreateDTO> orders);
+
     void markOrderPaySuccess(Long orderId);
 
     void cancelOrder(Long orderId);
 
+    List<Long> cancelOrders(Collection<Long> orderIds);
+
+    List<Long> cancelMyOrders(Collection<Long> orderIds);
+
+    void closeTimeoutOrders(Collection<Long> orderIds);
+
     Long placeOrder(OrderFormDTO orderFormDTO);
+
+    CompletableFuture<Long> placeOrderAsync(OrderFormDTO orderFormDTO);
+
+    Long seckill(Long itemId);
+
+    void createSeckillOrders(List<SeckillOrderDTO> orders);
 }
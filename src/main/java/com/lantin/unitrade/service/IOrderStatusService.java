@@ -0,0 +1,59 @@
+package com.lantin.unitrade.service;
+
+import com.lantin.unitrade.enums.OrderCreateStatus;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collection;
+
+/**
+ * 下单处理状态服务
+ * 状态和下单用户保存在redis的 order:status:{orderId} 中，变化时通过redisson topic广播，各节点据此唤醒正在长轮询的请求
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+public interface IOrderStatusService {
+
+    /**
+     * 记录下单处理状态为已预扣库存，同时记录下单用户，查询时只允许本人查询
+     * @param orderId
+     * @param userId
+     */
+    void reserve(Long orderId, Long userId);
+
+    /**
+     * 更新下单处理状态
+     * @param orderIds
+     * @param status
+     */
+    void update(Collection<Long> orderIds, OrderCreateStatus status);
+
+    /**
+     * 在当前事务提交后更新下单处理状态，没有事务时立即更新
+     * @param orderIds
+     * @param status
+     */
+    void updateAfterCommit(Collection<Long> orderIds, OrderCreateStatus status);
+
+    /**
+     * 删除下单处理状态，用于下单没有成功、订单id也没有返回给客户端的情况
+     * @param orderId
+     */
+    void remove(Long orderId);
+
+    /**
+     * 查询下单处理状态
+     * @param orderId
+     * @param userId 当前用户，不是该用户的订单时当作不存在
+     * @return 没有记录时返回null
+     */
+    OrderCreateStatus get(Long orderId, Long userId);
+
+    /**
+     * 长轮询下单处理状态，已经是最终状态时立即返回，否则等到状态变化或者超时再返回，期间不占用servlet线程
+     * @param orderId
+     * @param userId 当前用户，等待期间在其他线程中查询，需要显式传入
+     * @param waitMillis 最多等待的时间，不超过配置的最大值
+     * @return
+     */
+    DeferredResult<OrderCreateStatus> await(Long orderId, Long userId, long waitMillis);
+}
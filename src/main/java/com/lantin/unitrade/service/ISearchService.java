@@ -2,9 +2,12 @@ package com.lantin.unitrade.service;
 
 
 
+import com.lantin.unitrade.domain.dto.ItemCursorQuery;
 import com.lantin.unitrade.domain.dto.ItemDTO;
 import com.lantin.unitrade.domain.dto.ItemPageQuery;
 import com.lantin.unitrade.domain.dto.PageDTO;
+import com.lantin.unitrade.domain.vo.ItemCursorVO;
+import com.lantin.unitrade.domain.vo.ItemSearchVO;
 
 import java.io.IOException;
 import java.util.Map;
@@ -13,4 +16,8 @@ public interface ISearchService {
     PageDTO<ItemDTO> searchItemsInfo(ItemPageQuery query) throws IOException;
 
     Map searchItemFilters(ItemPageQuery query) throws IOException;
+
+    ItemSearchVO searchItemsWithFacets(ItemPageQuery query) throws IOException;
+
+    ItemCursorVO searchItemsByCursor(ItemCursorQuery query) throws IOException;
 }
@@ -0,0 +1,78 @@
+package com.lantin.unitrade.service;
+
+import com.lantin.unitrade.domain.dto.OrderDetailDTO;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * redis库存服务
+ * 普通商品的库存是一个key item:stock:{itemId}
+ * 秒杀等超热点商品可以开启库存分片，库存被拆到多个key上，分散到不同的redis槽
+ * @Author lantin
+ * @Date 2024/8/10
+ */
+public interface IStockService {
+
+    /**
+     * 预扣多个商品的库存，全部成功或全部不扣
+     * @param details 商品及购买数量
+     * @param userId 用户id，分片库存按用户id选择分片
+     */
+    void reserve(List<OrderDetailDTO> details, Long userId);
+
+    /**
+     * 归还预扣的库存
+     * @param details
+     * @param userId
+     */
+    void release(List<OrderDetailDTO> details, Long userId);
+
+    /**
+     * 恢复已经写回数据库的库存（取消订单等），数据库库存由调用方直接恢复，这里只恢复redis，不记录流水
+     * @param details
+     */
+    void restore(List<OrderDetailDTO> details);
+
+    /**
+     * 扣减单件库存时依次尝试的库存key
+     * 普通商品只有 item:stock:{itemId}，分片商品是从用户对应分片开始的所有分片
+     * @param itemId
+     * @param userId
+     * @return
+     */
+    List<String> stockKeys(Long itemId, Long userId);
+
+    /**
+     * 查询商品当前在redis中的库存，分片库存返回所有分片之和
+     * @param itemId
+     * @return
+     */
+    long getStock(Long itemId);
+
+    /**
+     * 批量查询商品当前在redis中的库存
+     * @param itemIds
+     * @return 商品id -> 库存，redis中没有库存的商品不包含在内
+     */
+    Map<Long, Long> getStocks(Collection<Long> itemIds);
+
+    /**
+     * 开启库存分片，把当前库存平均拆到多个分片上
+     * @param itemId
+     * @param shards 分片数
+     */
+    void enableSharding(Long itemId, int shards);
+
+    /**
+     * 关闭库存分片，把所有分片的库存合并回一个key
+     * @param itemId
+     */
+    void disableSharding(Long itemId);
+
+    /**
+     * 重新平衡各分片的库存
+     */
+    void rebalance();
+}
@@ -0,0 +1,28 @@
+package com.lantin.unitrade.service;
+
+import java.util.Map;
+
+/**
+ * 库存写回服务
+ * 下单时只扣减redis库存并记录库存流水，由本服务定期把流水按商品合并后写回数据库，每个商品每次只有一条update
+ * @Author lantin
+ * @Date 2024/8/12
+ */
+public interface IStockWriteBackService {
+
+    /**
+     * 把当前的库存流水写回数据库
+     */
+    void flush();
+
+    /**
+     * 删除超过保留时间的库存写回记录
+     */
+    void cleanFlushLog();
+
+    /**
+     * 对账，比较redis库存和数据库库存加上还没有写回的流水是否一致
+     * @return 连续两次对账都不一致的商品 商品id -> redis库存比预期多出的数量
+     */
+    Map<Long, Long> reconcile();
+}
@@ -0,0 +1,206 @@
+package com.lantin.unitrade.service.impl;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.lantin.unitrade.config.CacheProperties;
+import com.lantin.unitrade.constant.RedisConstants;
+import com.lantin.unitrade.domain.po.Item;
+import com.lantin.unitrade.domain.vo.CacheWarmUpVO;
+import com.lantin.unitrade.service.ICacheWarmUpService;
+import com.lantin.unitrade.service.IItemService;
+import com.lantin.unitrade.utils.CacheClient;
+import com.lantin.unitrade.utils.CollUtils;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.lantin.unitrade.constant.RedisConstants.ITEM_STOCK_KEY;
+
+/**
+ * 缓存预热
+ * 按id游标分页读取商品表，每一页交给工作线程用管道写入redis：
+ *  - cache:item:{id} 逻辑过期的商品缓存
+ *  - item:stock:{id} 库存，只在不存在时写入，不会覆盖正在使用的库存
+ * 读取速度按配置限速，避免预热时压垮数据库
+ * @Author lantin
+ * @Date 2024/8/8
+ */
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class CacheWarmUpServiceImpl implements ICacheWarmUpService, ApplicationRunner {
+
+    private final IItemService itemService;
+    private final CacheClient cacheClient;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheProperties cacheProperties;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong failedPages = new AtomicLong();
+    private volatile String status = "IDLE";
+    private volatile LocalDateTime startTime;
+    private volatile long startMillis;
+    private volatile long endMillis;
+
+
+    /**
+     * 启动时预热
+     * @param args
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (Boolean.TRUE.equals(cacheProperties.getWarmUp().getOnStartup())) {
+            startItemWarmUp();
+        }
+    }
+
+
+    @Override
+    public boolean startItemWarmUp() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        loaded.set(0);
+        pages.set(0);
+        failedPages.set(0);
+        startTime = LocalDateTime.now();
+        startMillis = System.currentTimeMillis();
+        status = "RUNNING";
+        CompletableFuture.runAsync(this::warmUpItems);
+        return true;
+    }
+
+
+    @Override
+    public CacheWarmUpVO getProgress() {
+        CacheWarmUpVO vo = new CacheWarmUpVO();
+        vo.setStatus(status);
+        vo.setLoaded(loaded.get());
+        vo.setPages(pages.get());
+        vo.setFailedPages(failedPages.get());
+        vo.setStartTime(startTime);
+        if (startTime != null) {
+            long elapsed = (running.get() ? System.currentTimeMillis() : endMillis) - startMillis;
+            vo.setElapsedMs(elapsed);
+            vo.setRowsPerSecond(elapsed == 0 ? 0 : loaded.get() * 1000 / elapsed);
+        }
+        return vo;
+    }
+
+
+    private void warmUpItems() {
+        CacheProperties.WarmUp config = cacheProperties.getWarmUp();
+        int parallelism = config.getParallelism();
+        ExecutorService workers = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("cache-warm-up-", true));
+        // 限制同时在内存中等待写入的页数，读得比写得快时阻塞读取
+        Semaphore permits = new Semaphore(parallelism * 2);
+        long scanned = 0;
+        try {
+            log.info("开始预热商品缓存");
+            Long lastId = 0L;
+            while (true) {
+                // 1. 按id游标分页，避免深分页
+                List<Item> page = itemService.lambdaQuery()
+                        .gt(Item::getId, lastId)
+                        .orderByAsc(Item::getId)
+                        .last("limit " + config.getPageSize())
+                        .list();
+                if (CollUtils.isEmpty(page)) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getId();
+                scanned += page.size();
+
+                // 2. 交给工作线程写入redis
+                permits.acquire();
+                workers.execute(() -> {
+                    try {
+                        writePage(page);
+                        loaded.addAndGet(page.size());
+                        pages.incrementAndGet();
+                    } catch (Exception e) {
+                        failedPages.incrementAndGet();
+                        log.error("商品缓存预热写入失败，id范围：{} - {}",
+                                page.get(0).getId(), page.get(page.size() - 1).getId(), e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+
+                // 3. 限速
+                throttle(scanned, config.getMaxRowsPerSecond());
+            }
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.HOURS);
+            status = failedPages.get() == 0 ? "DONE" : "FAILED";
+        } catch (Exception e) {
+            status = "FAILED";
+            log.error("商品缓存预热失败", e);
+        } finally {
+            workers.shutdownNow();
+            endMillis = System.currentTimeMillis();
+            running.set(false);
+            log.info("商品缓存预热结束，状态：{}，写入{}个商品，耗时{}ms",
+                    status, loaded.get(), endMillis - startMillis);
+        }
+    }
+
+
+    /**
+     * 用管道写入一页商品的缓存和库存
+     * @param page
+     */
+    private void writePage(List<Item> page) {
+        Map<String, Object> values = new LinkedHashMap<>(page.size());
+        for (Item item : page) {
+            values.put(RedisConstants.CACHE_ITEM_KEY + item.getId(), item);
+        }
+        cacheClient.setBatchWithLogicalExpire(values, RedisConstants.CACHE_ITEM_TTL, TimeUnit.MINUTES);
+
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Item item : page) {
+                connection.setNX((ITEM_STOCK_KEY + item.getId()).getBytes(StandardCharsets.UTF_8),
+                        String.valueOf(item.getStock()).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * 读取速度超过限制时休眠
+     * @param scanned 已读取的行数
+     * @param maxRowsPerSecond
+     */
+    private void throttle(long scanned, Integer maxRowsPerSecond) throws InterruptedException {
+        if (maxRowsPerSecond == null || maxRowsPerSecond <= 0) {
+            return;
+        }
+        long expected = scanned * 1000 / maxRowsPerSecond;
+        long elapsed = System.currentTimeMillis() - startMillis;
+        if (expected > elapsed) {
+            Thread.sleep(expected - elapsed);
+        }
+    }
+}
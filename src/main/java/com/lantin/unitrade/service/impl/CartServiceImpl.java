@@ -1,7 +1,6 @@
 package com.lantin.unitrade.service.impl;
 
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.lantin.unitrade.config.CartProperties;
@@ -89,11 +88,11 @@ public class CartServiceImpl extends ServiceImpl<CartMapper, Cart> implements IC
         Long userId = UserHolder.getUser().getId();
         String key = CACHE_CART_KEY + userId;   // 购物车在redis中以人为单位，每个人一个键值对
         // 1. 先查redis缓存是否有购物车数据
-        String json = stringRedisTemplate.opsForValue().get(key);
+        List<CartVO> cached = cacheClient.getList(key, CartVO.class);
 
         // 2. 如果有，直接返回
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toList(json, CartVO.class);
+        if (cached != null) {
+            return cached;
         }
 
         // 3. 如果没有，查询数据库
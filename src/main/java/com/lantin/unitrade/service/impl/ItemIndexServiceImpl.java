@@ -0,0 +1,175 @@
+package com.lantin.unitrade.service.impl;
+
+import cn.hutool.json.JSONUtil;
+import com.lantin.unitrade.config.SearchProperties;
+import com.lantin.unitrade.domain.dto.ItemDoc;
+import com.lantin.unitrade.domain.po.Item;
+import com.lantin.unitrade.enums.ItemStatus;
+import com.lantin.unitrade.service.IItemIndexService;
+import com.lantin.unitrade.service.IItemService;
+import com.lantin.unitrade.utils.BeanUtils;
+import com.lantin.unitrade.utils.NearCache;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.lantin.unitrade.constant.RedisConstants.CACHE_SEARCH_KEY;
+import static com.lantin.unitrade.constant.RedisConstants.SEARCH_REINDEX_KEY;
+
+/**
+ * 商品索引同步服务
+ * 文档使用外部版本号，取同步时从数据库查到的商品的更新时间（update_time），版本号和文档内容来自同一次查询，
+ * 多个消费者并发同步同一商品时，先查到旧数据的那次写入会因为版本号较小被es拒绝，不会覆盖后查到的新数据，
+ * 也不依赖发消息的节点的时钟；商品已经被删除时查不到更新时间，用同步时的当前时间作为删除的版本号，
+ * es会保留一段时间的删除记录，迟到的旧写入也不会让文档复活
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ItemIndexServiceImpl implements IItemIndexService {
+
+    private final RestHighLevelClient client;
+    private final IItemService itemService;
+    private final SearchProperties searchProperties;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final NearCache nearCache;
+
+
+    @Override
+    public void sync(Collection<Long> itemIds) throws IOException {
+        if (itemIds.isEmpty()) {
+            return;
+        }
+        // 1. 一次查出这批商品的最新数据，以及每个商品的文档版本号
+        Map<Long, Item> items = itemService.listByIds(itemIds).stream()
+                .collect(Collectors.toMap(Item::getId, Function.identity()));
+        long now = System.currentTimeMillis();
+        Map<Long, Long> versions = new HashMap<>(itemIds.size());
+        for (Long id : itemIds) {
+            Item item = items.get(id);
+            versions.put(id, item != null && item.getUpdateTime() != null ? version(item.getUpdateTime()) : now);
+        }
+
+        // 2. 在售的商品写入文档，已删除或不在售的删除文档，等到变更可以被搜索到再返回
+        BulkRequest request = bulkRequest(searchProperties.getIndex(), versions, items)
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+        bulk(request);
+
+        // 3. 清空各节点缓存的搜索结果，此时重新搜索已经能查到新数据
+        nearCache.invalidatePrefix(CACHE_SEARCH_KEY);
+
+        // 4. 正在全量重建时新索引也要写一份，否则重建期间的变更在切换别名后会丢失
+        // 新索引在写入期间关闭了刷新，wait_until会一直等下去，所以单独发送，不等待刷新
+        // 检查点心跳超时的重建已经中断，不再双写，它也不会再被继续或者切换
+        List<Object> reindexing = stringRedisTemplate.opsForHash().multiGet(SEARCH_REINDEX_KEY, Arrays.asList("index", "heartbeat"));
+        if (reindexing.get(0) != null && !ItemReindexServiceImpl.isStale(reindexing.get(1), searchProperties)) {
+            bulk(bulkRequest(reindexing.get(0).toString(), versions, items)
+                    .setRefreshPolicy(WriteRequest.RefreshPolicy.NONE));
+        }
+    }
+
+
+    private BulkRequest bulkRequest(String index, Map<Long, Long> versions, Map<Long, Item> items) {
+        BulkRequest request = new BulkRequest();
+        versions.forEach((id, version) -> {
+            Item item = items.get(id);
+            if (item != null && ItemStatus.SALE.equalsValue(item.getStatus())) {
+                request.add(indexRequest(index, item, version));
+            } else {
+                request.add(new DeleteRequest(index, id.toString())
+                        .version(version).versionType(VersionType.EXTERNAL_GTE));
+            }
+        });
+        return request;
+    }
+
+    /**
+     * 更新时间转为毫秒作为文档版本号，和全量重建时使用的版本号（重建开始的时间）可以比较
+     * @param updateTime
+     * @return
+     */
+    static long version(LocalDateTime updateTime) {
+        return updateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 发送bulk请求并检查每一条的结果
+     * @param request
+     * @throws IOException
+     */
+    private void bulk(BulkRequest request) throws IOException {
+        BulkResponse response = client.bulk(request, RequestOptions.DEFAULT);
+        if (response.hasFailures()) {
+            handleFailures(response);
+        }
+    }
+
+
+    /**
+     * 商品转换为索引文档的写入请求
+     * external_gte：同一毫秒内的多次变更也能写入，反正写入的都是查询时的最新数据
+     * @param index
+     * @param item
+     * @param version 外部版本号
+     * @return
+     */
+    static IndexRequest indexRequest(String index, Item item, long version) {
+        ItemDoc itemDoc = BeanUtils.copyBean(item, ItemDoc.class);
+        return new IndexRequest(index).id(itemDoc.getId())
+                .source(JSONUtil.toJsonStr(itemDoc), XContentType.JSON)
+                .version(version).versionType(VersionType.EXTERNAL_GTE);
+    }
+
+
+    /**
+     * 版本冲突说明索引中已经是更新的数据，直接忽略
+     * 限流和es内部错误可以重试，抛出IOException，和es连接失败一样由调用方重试；其余错误（如字段映射不符）重试也不会成功，只记录日志
+     * @param response
+     */
+    private void handleFailures(BulkResponse response) throws IOException {
+        int retryable = 0;
+        for (BulkItemResponse item : response.getItems()) {
+            if (!item.isFailed()) {
+                continue;
+            }
+            RestStatus status = item.getFailure().getStatus();
+            if (status == RestStatus.CONFLICT) {
+                continue;
+            }
+            if (status == RestStatus.TOO_MANY_REQUESTS || status.getStatus() >= 500) {
+                retryable++;
+            } else {
+                log.error("商品索引同步失败，商品id：{}，原因：{}", item.getId(), item.getFailureMessage());
+            }
+        }
+        if (retryable > 0) {
+            throw new IOException("商品索引同步失败，可重试的文档数：" + retryable);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package com.lantin.unitrade.service.impl;
+
+import cn.hutool.core.date.DatePattern;
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.io.resource.ResourceUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.lantin.unitrade.config.SearchProperties;
+import com.lantin.unitrade.domain.po.Item;
+import com.lantin.unitrade.domain.vo.ItemReindexVO;
+import com.lantin.unitrade.enums.ItemStatus;
+import com.lantin.unitrade.exception.BizIllegalException;
+import com.lantin.unitrade.service.IItemReindexService;
+import com.lantin.unitrade.service.IItemService;
+import com.lantin.unitrade.utils.CollUtils;
+import com.lantin.unitrade.utils.NearCache;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.lantin.unitrade.constant.RedisConstants.CACHE_SEARCH_KEY;
+import static com.lantin.unitrade.constant.RedisConstants.LOCK_SEARCH_REINDEX_KEY;
+import static com.lantin.unitrade.constant.RedisConstants.SEARCH_REINDEX_KEY;
+
+/**
+ * 商品索引全量重建
+ * 写入一个带时间戳的新索引，完成后把别名原子地切换到新索引，搜索不会看到写了一半的索引：
+ *  - 按id游标分页读取在售商品，读取在当前线程，转换文档交给工作线程，bulk请求异步发送
+ *  - 在途的页数用信号量限制，es写得比读得慢时阻塞读取，内存中最多只有max-in-flight页
+ *  - 每完成一页，把连续完成的最大商品id作为检查点写入redis，中途宕机后从检查点继续，重复写入是幂等的
+ *  - 文档版本号取重建开始的时间，重建期间增量同步也会写入新索引（见ItemIndexServiceImpl），
+ *    它的版本号更大，重建读到的旧数据不会覆盖它
+ *  - 检查点带有心跳时间，超过heartbeat-timeout没有更新时增量同步停止双写，这个检查点也不能再继续，
+ *    否则会漏掉停止双写期间的变更；也可以手动取消，删除新索引和检查点
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ItemReindexServiceImpl implements IItemReindexService, ApplicationRunner {
+
+    private static final String MAPPING = ResourceUtil.readUtf8Str("item_index.json");
+
+    private final RestHighLevelClient client;
+    private final IItemService itemService;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final SearchProperties searchProperties;
+    private final NearCache nearCache;
+
+    // 重建任务单独一个线程，不占用公共的ForkJoinPool
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("item-reindex-main-", true));
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong indexed = new AtomicLong();
+    private volatile String status = "IDLE";
+    private volatile String index;
+    private volatile long lastId;
+    private volatile LocalDateTime startTime;
+    private volatile long startMillis;
+    private volatile long endMillis;
+    private volatile long resumedFrom;
+
+
+    /**
+     * 启动时检查有没有中断的重建
+     * @param args
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (Boolean.TRUE.equals(searchProperties.getReindex().getResumeOnStartup())
+                && Boolean.TRUE.equals(stringRedisTemplate.hasKey(SEARCH_REINDEX_KEY))) {
+            log.info("发现未完成的商品索引重建，从检查点继续");
+            startReindex();
+        }
+    }
+
+
+    @Override
+    public boolean startReindex() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        startTime = LocalDateTime.now();
+        startMillis = System.currentTimeMillis();
+        status = "RUNNING";
+        try {
+            executor.execute(this::reindex);
+        } catch (Exception e) {
+            status = "FAILED";
+            running.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+
+    @Override
+    public boolean abortReindex() {
+        Object abortIndex = stringRedisTemplate.opsForHash().get(SEARCH_REINDEX_KEY, "index");
+        // 先删检查点，增量同步立即停止双写，正在执行的重建下一页就会退出
+        if (!Boolean.TRUE.equals(stringRedisTemplate.delete(SEARCH_REINDEX_KEY)) || abortIndex == null) {
+            return false;
+        }
+        deleteIndexQuietly(abortIndex.toString());
+        log.info("商品索引重建已取消，删除新索引{}", abortIndex);
+        return true;
+    }
+
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+
+    @Override
+    public ItemReindexVO getProgress() {
+        ItemReindexVO vo = new ItemReindexVO();
+        vo.setStatus(status);
+        vo.setIndex(index);
+        vo.setIndexed(indexed.get());
+        vo.setLastId(lastId);
+        vo.setStartTime(startTime);
+        if (startTime != null) {
+            long elapsed = (running.get() ? System.currentTimeMillis() : endMillis) - startMillis;
+            vo.setElapsedMs(elapsed);
+            vo.setDocsPerSecond(elapsed == 0 ? 0 : (indexed.get() - resumedFrom) * 1000 / elapsed);
+        }
+        return vo;
+    }
+
+
+    private void reindex() {
+        // 多个节点同时触发时只有一个执行，锁由看门狗续期
+        RLock lock = redissonClient.getLock(LOCK_SEARCH_REINDEX_KEY);
+        if (!lock.tryLock()) {
+            // 没有执行，不算失败
+            status = "SKIPPED";
+            running.set(false);
+            log.warn("商品索引重建正在其他节点执行，本节点跳过");
+            return;
+        }
+        try {
+            // 1. 从检查点继续，或者创建新索引
+            Checkpoint checkpoint = loadCheckpoint();
+            if (checkpoint == null) {
+                checkpoint = createIndex();
+            }
+            index = checkpoint.index;
+            lastId = checkpoint.lastId;
+            indexed.set(checkpoint.indexed);
+            resumedFrom = checkpoint.indexed;
+            log.info("开始重建商品索引{}，从商品id {} 之后开始", index, lastId);
+
+            // 2. 写入所有在售商品
+            writeAll(checkpoint.version);
+
+            // 3. 恢复刷新和副本，切换别名
+            checkHeartbeat();
+            switchAlias();
+            stringRedisTemplate.delete(SEARCH_REINDEX_KEY);
+            status = "DONE";
+        } catch (Exception e) {
+            if (index != null && !Boolean.TRUE.equals(stringRedisTemplate.hasKey(SEARCH_REINDEX_KEY))) {
+                // 检查点被删除，说明重建被取消了，新索引可能在取消之后才写入，再删一次
+                status = "ABORTED";
+                deleteIndexQuietly(index);
+                log.warn("商品索引重建已取消，检查点：商品id {}", lastId);
+            } else {
+                status = "FAILED";
+                log.error("商品索引重建失败，检查点：商品id {}", lastId, e);
+            }
+        } finally {
+            lock.unlock();
+            endMillis = System.currentTimeMillis();
+            running.set(false);
+            log.info("商品索引重建结束，状态：{}，索引：{}，共写入{}个文档，耗时{}ms",
+                    status, index, indexed.get(), endMillis - startMillis);
+        }
+    }
+
+
+    /**
+     * 读取、转换、写入流水线，按完成顺序推进检查点
+     * @param version 文档版本号
+     */
+    private void writeAll(long version) throws Exception {
+        SearchProperties.Reindex config = searchProperties.getReindex();
+        int parallelism = config.getParallelism();
+        ExecutorService workers = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("item-reindex-", true));
+        Semaphore permits = new Semaphore(config.getMaxInFlight());
+        // 按提交顺序排列的在途页，只有队头完成了检查点才能前进，后面的页先完成也要等前面的
+        Deque<PageTask> tasks = new ArrayDeque<>();
+        try {
+            long cursor = lastId;
+            while (true) {
+                if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(SEARCH_REINDEX_KEY))) {
+                    throw new BizIllegalException("商品索引重建已取消");
+                }
+                // 1. 按id游标分页
+                List<Item> page = itemService.lambdaQuery()
+                        .eq(Item::getStatus, ItemStatus.SALE.getValue())
+                        .gt(Item::getId, cursor)
+                        .orderByAsc(Item::getId)
+                        .last("limit " + config.getPageSize())
+                        .list();
+                if (CollUtils.isEmpty(page)) {
+                    break;
+                }
+                cursor = page.get(page.size() - 1).getId();
+
+                // 2. 转换交给工作线程，之后异步发送bulk请求，请求结束后归还许可
+                permits.acquire();
+                CompletableFuture<Void> done = CompletableFuture
+                        .supplyAsync(() -> toBulkRequest(page, version), workers)
+                        .thenCompose(this::bulkAsync);
+                done.whenComplete((r, e) -> permits.release());
+                tasks.addLast(new PageTask(cursor, page.size(), done));
+
+                // 3. 推进检查点，有页失败时停止读取
+                advanceCheckpoint(tasks, false);
+            }
+            advanceCheckpoint(tasks, true);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+
+    /**
+     * 把队头连续完成的页写入检查点
+     * @param tasks 在途页
+     * @param waitAll 是否等待所有页完成
+     */
+    private void advanceCheckpoint(Deque<PageTask> tasks, boolean waitAll) {
+        PageTask completed = null;
+        while (!tasks.isEmpty() && (waitAll || tasks.peekFirst().done.isDone())) {
+            PageTask task = tasks.pollFirst();
+            // 失败的页抛出异常，检查点停在它之前
+            task.done.join();
+            indexed.addAndGet(task.size);
+            completed = task;
+        }
+        if (completed == null) {
+            return;
+        }
+        checkHeartbeat();
+        lastId = completed.lastId;
+        Map<String, String> checkpoint = new HashMap<>(4);
+        checkpoint.put("lastId", String.valueOf(lastId));
+        checkpoint.put("indexed", String.valueOf(indexed.get()));
+        checkpoint.put("heartbeat", String.valueOf(System.currentTimeMillis()));
+        stringRedisTemplate.opsForHash().putAll(SEARCH_REINDEX_KEY, checkpoint);
+        if (!stringRedisTemplate.opsForHash().hasKey(SEARCH_REINDEX_KEY, "index")) {
+            // 取消和写检查点同时发生，检查点被重新创建了，删掉它
+            stringRedisTemplate.delete(SEARCH_REINDEX_KEY);
+            throw new BizIllegalException("商品索引重建已取消");
+        }
+    }
+
+
+    private BulkRequest toBulkRequest(List<Item> page, long version) {
+        BulkRequest request = new BulkRequest();
+        for (Item item : page) {
+            request.add(ItemIndexServiceImpl.indexRequest(index, item, version));
+        }
+        return request;
+    }
+
+    /**
+     * 异步发送bulk请求，版本冲突说明增量同步已经写入了更新的数据，其余失败整页算失败
+     * @param request
+     * @return
+     */
+    private CompletableFuture<Void> bulkAsync(BulkRequest request) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        client.bulkAsync(request, RequestOptions.DEFAULT, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed() && item.getFailure().getStatus() != RestStatus.CONFLICT) {
+                        future.completeExceptionally(new BizIllegalException(
+                                "写入商品文档失败，商品id：" + item.getId() + "，原因：" + item.getFailureMessage()));
+                        return;
+                    }
+                }
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+
+    /**
+     * 读取检查点，检查点中的索引已经不存在或者心跳超时（增量同步已经停止双写）时丢弃，重新开始
+     * @return 没有未完成的重建返回null
+     */
+    private Checkpoint loadCheckpoint() throws IOException {
+        Map<Object, Object> map = stringRedisTemplate.opsForHash().entries(SEARCH_REINDEX_KEY);
+        if (map.isEmpty() || map.get("index") == null) {
+            return null;
+        }
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.index = map.get("index").toString();
+        if (isStale(map.get("heartbeat"), searchProperties)) {
+            log.warn("商品索引重建的检查点已经过期，丢弃新索引{}重新开始", checkpoint.index);
+            stringRedisTemplate.delete(SEARCH_REINDEX_KEY);
+            deleteIndexQuietly(checkpoint.index);
+            return null;
+        }
+        if (!client.indices().exists(new GetIndexRequest(checkpoint.index), RequestOptions.DEFAULT)) {
+            stringRedisTemplate.delete(SEARCH_REINDEX_KEY);
+            return null;
+        }
+        checkpoint.version = Long.parseLong(map.get("version").toString());
+        checkpoint.lastId = Long.parseLong(map.getOrDefault("lastId", "0").toString());
+        checkpoint.indexed = Long.parseLong(map.getOrDefault("indexed", "0").toString());
+        return checkpoint;
+    }
+
+    /**
+     * 创建新索引并写入检查点，写入期间关闭刷新、不要副本，加快写入
+     * @return
+     */
+    private Checkpoint createIndex() throws IOException {
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.index = searchProperties.getIndex() + "_"
+                + LocalDateTimeUtil.format(LocalDateTime.now(), DatePattern.PURE_DATETIME_PATTERN);
+        checkpoint.version = System.currentTimeMillis();
+        CreateIndexRequest request = new CreateIndexRequest(checkpoint.index)
+                .source(MAPPING, XContentType.JSON)
+                .settings(Settings.builder()
+                        .put("index.refresh_interval", "-1")
+                        .put("index.number_of_replicas", 0));
+        client.indices().create(request, RequestOptions.DEFAULT);
+
+        Map<String, String> map = new HashMap<>(8);
+        map.put("index", checkpoint.index);
+        map.put("version", String.valueOf(checkpoint.version));
+        map.put("lastId", "0");
+        map.put("indexed", "0");
+        map.put("heartbeat", String.valueOf(checkpoint.version));
+        stringRedisTemplate.opsForHash().putAll(SEARCH_REINDEX_KEY, map);
+        return checkpoint;
+    }
+
+
+    /**
+     * 检查点的心跳是否已经超时，增量同步也用它判断是否还要双写
+     * @param heartbeat 检查点中的心跳时间
+     * @param searchProperties
+     * @return 没有心跳也算超时
+     */
+    static boolean isStale(Object heartbeat, SearchProperties searchProperties) {
+        return heartbeat == null || System.currentTimeMillis() - Long.parseLong(heartbeat.toString())
+                > searchProperties.getReindex().getHeartbeatTimeout().toMillis();
+    }
+
+    /**
+     * 心跳已经超时说明增量同步停止过双写，新索引可能漏掉了变更，不能再继续写入或切换别名
+     */
+    private void checkHeartbeat() {
+        if (isStale(stringRedisTemplate.opsForHash().get(SEARCH_REINDEX_KEY, "heartbeat"), searchProperties)) {
+            throw new BizIllegalException("商品索引重建的心跳超时，增量同步可能已经停止双写，需要重新开始");
+        }
+    }
+
+    private void deleteIndexQuietly(String name) {
+        try {
+            client.indices().delete(new DeleteIndexRequest(name), RequestOptions.DEFAULT);
+        } catch (Exception e) {
+            log.warn("删除商品索引{}失败", name, e);
+        }
+    }
+
+
+    /**
+     * 恢复新索引的刷新和副本，然后在一个请求中把别名从旧索引移到新索引
+     * 第一次重建时别名还是一个实际的索引，用remove_index在同一个请求中删掉它
+     */
+    private void switchAlias() throws IOException {
+        SearchProperties.Reindex config = searchProperties.getReindex();
+        String alias = searchProperties.getIndex();
+        client.indices().putSettings(new UpdateSettingsRequest(index).settings(Settings.builder()
+                .put("index.refresh_interval", config.getRefreshInterval())
+                .put("index.number_of_replicas", config.getReplicas())), RequestOptions.DEFAULT);
+        client.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+
+        GetAliasesResponse aliases = client.indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT);
+        Set<String> oldIndices = aliases.status() == RestStatus.NOT_FOUND ? Set.of() : aliases.getAliases().keySet();
+        IndicesAliasesRequest request = new IndicesAliasesRequest();
+        if (oldIndices.isEmpty() && client.indices().exists(new GetIndexRequest(alias), RequestOptions.DEFAULT)) {
+            request.addAliasAction(AliasActions.removeIndex().index(alias));
+        }
+        for (String oldIndex : oldIndices) {
+            request.addAliasAction(AliasActions.remove().index(oldIndex).alias(alias));
+        }
+        request.addAliasAction(AliasActions.add().index(index).alias(alias));
+        client.indices().updateAliases(request, RequestOptions.DEFAULT);
+        log.info("商品索引别名{}已切换到{}，旧索引：{}", alias, index, oldIndices);
+        nearCache.invalidatePrefix(CACHE_SEARCH_KEY);
+
+        if (Boolean.TRUE.equals(config.getDeleteOldIndex()) && !oldIndices.isEmpty()) {
+            client.indices().delete(new DeleteIndexRequest(oldIndices.toArray(new String[0])), RequestOptions.DEFAULT);
+        }
+    }
+
+
+    private static class Checkpoint {
+        private String index;
+        private long version;
+        private long lastId;
+        private long indexed;
+    }
+
+    private static class PageTask {
+        private final long lastId;
+        private final int size;
+        private final CompletableFuture<Void> done;
+
+        private PageTask(long lastId, int size, CompletableFuture<Void> done) {
+            this.lastId = lastId;
+            this.size = size;
+            this.done = done;
+        }
+    }
+}
@@ -3,34 +3,58 @@ package com.lantin.unitrade.service.impl;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.lantin.unitrade.constant.MessageConstants;
 import com.lantin.unitrade.constant.RedisConstants;
+import com.lantin.unitrade.domain.dto.ItemChangeEvent;
 import com.lantin.unitrade.domain.dto.ItemDTO;
 import com.lantin.unitrade.domain.dto.OrderDetailDTO;
 import com.lantin.unitrade.domain.dto.Result;
 import com.lantin.unitrade.domain.po.Item;
+import com.lantin.unitrade.enums.ItemStatus;
 import com.lantin.unitrade.exception.BizIllegalException;
+import com.lantin.unitrade.domain.po.StockFlushLog;
 import com.lantin.unitrade.mapper.ItemMapper;
+import com.lantin.unitrade.mapper.StockFlushLogMapper;
 import com.lantin.unitrade.service.IItemService;
+import com.lantin.unitrade.service.IStockService;
 import com.lantin.unitrade.utils.BeanUtils;
 import com.lantin.unitrade.utils.CacheClient;
+import com.lantin.unitrade.utils.CollUtils;
+import com.lantin.unitrade.utils.HotKeyDetector;
+import com.lantin.unitrade.utils.IdBloomFilter;
+import com.lantin.unitrade.utils.RabbitMqHelper;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import java.util.ArrayList;
+import java.io.Serializable;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import static com.lantin.unitrade.constant.MQConstants.ITEM_CHANGE_ROUTINGKEY;
+import static com.lantin.unitrade.constant.MQConstants.ITEM_DIRECT_EXCHANGE;
+import static com.lantin.unitrade.constant.RedisConstants.BLOOM_ITEM;
 import static com.lantin.unitrade.constant.RedisConstants.ITEM_STOCK_KEY;
 
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class ItemServiceImpl extends ServiceImpl<ItemMapper, Item> implements IItemService {
 
     private final CacheClient cacheClient;
     private final StringRedisTemplate stringRedisTemplate;
+    private final IdBloomFilter idBloomFilter;
+    private final HotKeyDetector hotKeyDetector;
+    private final StockFlushLogMapper stockFlushLogMapper;
+    private final IStockService stockService;
+    private final RabbitMqHelper rabbitMqHelper;
 
     /**
      * 上架商品
@@ -38,10 +62,17 @@ public class ItemServiceImpl extends ServiceImpl<ItemMapper, Item> implements II
      */
     @Override
     public void saveItem(ItemDTO item) {
-        // 1. 保存到数据库商品表
-        save(BeanUtils.copyBean(item, Item.class));
+        // 1. 保存到数据库商品表（id是自增的，要从保存后的实体中取）
+        Item po = BeanUtils.copyBean(item, Item.class);
+        save(po);
+        idBloomFilter.add(BLOOM_ITEM, po.getId());
         // 2. 添加商品库存缓存到redis，这里就不设置过期时间了（后续可以定期清理stock为0的商品缓存）
-        stringRedisTemplate.opsForValue().set(ITEM_STOCK_KEY + item.getId(), String.valueOf(item.getStock()));
+        hotKeyDetector.record(ITEM_STOCK_KEY + po.getId());
+        stringRedisTemplate.opsForValue().set(ITEM_STOCK_KEY + po.getId(), String.valueOf(po.getStock()));
+        // 3. 删除可能残留的商品缓存（包括各节点的本地缓存）
+        cacheClient.delete(RedisConstants.CACHE_ITEM_KEY + po.getId());
+        // 4. 通知同步索引库
+        publishChange(po.getId());
     }
 
     /**
@@ -73,25 +104,32 @@ public class ItemServiceImpl extends ServiceImpl<ItemMapper, Item> implements II
     @Override
     @Transactional
     public List<ItemDTO> queryItemByIds(Collection<Long> ids) {
-        List<ItemDTO> itemDTOS = new ArrayList<>();
-        for (Long id : ids) {
-            // 根据商品id查询商品
-            Item item = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_ITEM_KEY, id, Item.class,
-                    RedisConstants.LOCK_ITEM_KEY, this::getById, RedisConstants.CACHE_ITEM_TTL, TimeUnit.MINUTES);
-            itemDTOS.add(BeanUtils.copyProperties(item, ItemDTO.class));
+        if (CollUtils.isEmpty(ids)) {
+            return CollUtils.emptyList();
         }
-        
-        return itemDTOS;
+        // 本地缓存 -> 一次MGET查redis -> 未命中的一次listByIds查数据库，结果顺序与ids一致
+        // 布隆过滤器只在缓存未命中、查库之前批量判断，一定不存在的id不查库
+        List<Item> items = cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_ITEM_KEY, ids, Item.class,
+                RedisConstants.LOCK_ITEM_KEY, this::listByIdsIfMightExist, Item::getId,
+                RedisConstants.CACHE_ITEM_TTL, TimeUnit.MINUTES);
+        return BeanUtils.copyList(items, ItemDTO.class);
+    }
+
 
-        // TODO 先查询缓存，缓存没有再查询数据库，多级缓存实现？
-        // 下面这种是直接批量查数据库
-        // return BeanUtils.copyList(listByIds(ids), ItemDTO.class);
+    /**
+     * 缓存未命中的id先经过布隆过滤器批量过滤，再查数据库
+     * @param ids
+     * @return
+     */
+    private List<Item> listByIdsIfMightExist(Collection<Long> ids) {
+        List<Long> maybe = idBloomFilter.filter(BLOOM_ITEM, ids);
+        return maybe.isEmpty() ? CollUtils.emptyList() : listByIds(maybe);
     }
 
 
     /**
      * 根据商品id查询商品
-     * 商品是热点信息，利用逻辑过期解决缓存击穿问题
+     * 商品是热点信息，利用逻辑过期解决缓存击穿问题，热点商品优先从本地缓存返回
      *
      * @param id
      * @return
@@ -99,32 +137,60 @@ public class ItemServiceImpl extends ServiceImpl<ItemMapper, Item> implements II
     @Override
     @Transactional
     public ItemDTO queryItemById(Long id) {
+        // 逻辑过期方案中redis未命中直接返回空，不会查库，数据库只在重建已有的key时查询，不需要布隆过滤器
         Item item = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_ITEM_KEY, id, Item.class,
                 RedisConstants.LOCK_ITEM_KEY, this::getById, RedisConstants.CACHE_ITEM_TTL, TimeUnit.MINUTES);
 
-        // TODO 先查询缓存，缓存没有再查询数据库，多级缓存实现？
+        // 多级缓存：本地缓存 -> redis -> 数据库（CacheClient内部实现）
         return BeanUtils.copyProperties(item, ItemDTO.class);
     }
 
     /**
      * 恢复库存
      * 可能是由于超时未支付、取消订单等原因
+     * 同一商品合并后用一条CASE语句做相对的增量更新，不需要先查再写，并发取消时也不会互相覆盖
+     * redis库存在事务提交后用一个管道恢复
      * @param items
      */
     @Override
     @Transactional
     public void restoreStock(List<OrderDetailDTO> items) {
-        for (OrderDetailDTO orderDetail : items) {
-            // 根据商品id查询商品
-            Item item = lambdaQuery()
-                    .eq(Item::getId, orderDetail.getItemId())
-                    .one();
-            // 还原库存
-            lambdaUpdate()
-                    .set(Item::getStock, item.getStock() + orderDetail.getNum())    // 现在的库存 + 购买数量
-                    .eq(Item::getId, orderDetail.getItemId())
-                    .update();
+        if (CollUtils.isEmpty(items)) {
+            return;
         }
+        // 1. 恢复数据库库存
+        Map<Long, Long> deltas = new HashMap<>();
+        for (OrderDetailDTO item : items) {
+            deltas.merge(item.getItemId(), item.getNum().longValue(), Long::sum);
+        }
+        baseMapper.addStock(deltas);
+
+        // 2. 恢复redis库存，事务回滚时不能恢复，所以放到提交之后
+        List<OrderDetailDTO> restores = deltas.entrySet().stream()
+                .map(e -> new OrderDetailDTO().setItemId(e.getKey()).setNum(e.getValue().intValue()))
+                .collect(Collectors.toList());
+        afterCommit(() -> stockService.restore(restores));
+    }
+
+
+    /**
+     * 把一个库存流水批次写回数据库
+     * 写回记录和库存更新在同一个事务中，批次被重放时（写回后redis中的批次还没来得及删除就宕机了）不会重复写回
+     * @param flushId 批次id
+     * @param deltas 商品id -> 库存变化量
+     * @return 已经写回过返回false
+     */
+    @Override
+    @Transactional
+    public boolean applyStockDeltas(String flushId, Map<Long, Long> deltas) {
+        if (stockFlushLogMapper.selectById(flushId) != null) {
+            return false;
+        }
+        stockFlushLogMapper.insert(new StockFlushLog().setFlushId(flushId).setItemCount(deltas.size()));
+        if (!deltas.isEmpty()) {
+            baseMapper.addStock(deltas);
+        }
+        return true;
     }
 
 
@@ -145,11 +211,85 @@ public class ItemServiceImpl extends ServiceImpl<ItemMapper, Item> implements II
         // 1. 先更新数据库
         updateById(item);
 
-        // 2. 再删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_ITEM_KEY + id);
+        // 2. 再删除缓存（包括各节点的本地缓存）
+        cacheClient.delete(RedisConstants.CACHE_ITEM_KEY + id);
 
+        // 3. 通知同步索引库
+        publishChange(id);
         return Result.ok();
     }
 
 
+    /**
+     * 更新商品状态（上架、下架等）
+     * 下架后商品要从索引库中删除，重新上架后再加回来
+     * @param id
+     * @param status
+     */
+    @Override
+    @Transactional
+    public void updateItemStatus(Long id, Integer status) {
+        ItemStatus.of(status);  // 校验状态值
+        Item item = new Item();
+        item.setId(id);
+        item.setStatus(status);
+        updateById(item);
+        cacheClient.delete(RedisConstants.CACHE_ITEM_KEY + id);
+        publishChange(id);
+    }
+
+
+    /**
+     * 删除商品，同时删除缓存并通知从索引库中删除
+     * @param id
+     * @return
+     */
+    @Override
+    @Transactional
+    public boolean removeById(Serializable id) {
+        boolean removed = super.removeById(id);
+        if (removed) {
+            Long itemId = Long.valueOf(id.toString());
+            cacheClient.delete(RedisConstants.CACHE_ITEM_KEY + itemId);
+            publishChange(itemId);
+        }
+        return removed;
+    }
+
+
+    /**
+     * 事务提交后发送商品变更消息，事务回滚时不发送
+     * 变更时间作为索引文档的版本号，所以在提交之后再取
+     * 发送失败不影响已经提交的业务，索引库中的数据等下次变更或全量重建时再修正
+     * @param itemId
+     */
+    private void publishChange(Long itemId) {
+        afterCommit(() -> {
+            try {
+                rabbitMqHelper.sendMessage(ITEM_DIRECT_EXCHANGE, ITEM_CHANGE_ROUTINGKEY,
+                        new ItemChangeEvent().setItemId(itemId).setTime(System.currentTimeMillis()), message -> message);
+            } catch (Exception e) {
+                log.error("发送商品变更消息失败，商品id：{}", itemId, e);
+            }
+        });
+    }
+
+    /**
+     * 有事务时在事务提交后执行，没有事务时立即执行
+     * @param action
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+
 }
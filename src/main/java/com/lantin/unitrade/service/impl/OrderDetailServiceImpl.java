@@ -4,10 +4,25 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.lantin.unitrade.domain.po.OrderDetail;
 import com.lantin.unitrade.mapper.OrderDetailMapper;
 import com.lantin.unitrade.service.IOrderDetailService;
+import com.lantin.unitrade.utils.CollUtils;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+
 
 @Service
 public class OrderDetailServiceImpl extends ServiceImpl<OrderDetailMapper, OrderDetail> implements IOrderDetailService {
 
+    /**
+     * 一条多行insert语句写入所有订单详情
+     * saveBatch在没有开启rewriteBatchedStatements时仍然是逐条发送的
+     * @param details
+     */
+    @Override
+    public void insertBatch(List<OrderDetail> details) {
+        if (CollUtils.isEmpty(details)) {
+            return;
+        }
+        baseMapper.insertBatch(details);
+    }
 }
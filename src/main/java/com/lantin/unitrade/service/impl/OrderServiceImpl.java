@@ -1,43 +1,53 @@
 package com.lantin.unitrade.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 
+import com.lantin.unitrade.config.OrderProperties;
 import com.lantin.unitrade.constant.MQConstants;
 import com.lantin.unitrade.constant.RedisConstants;
 import com.lantin.unitrade.domain.dto.ItemDTO;
+import com.lantin.unitrade.domain.dto.OrderCreateDTO;
 import com.lantin.unitrade.domain.dto.OrderDetailDTO;
 import com.lantin.unitrade.domain.dto.OrderFormDTO;
+import com.lantin.unitrade.domain.dto.SeckillOrderDTO;
 import com.lantin.unitrade.domain.dto.UserDTO;
 import com.lantin.unitrade.domain.po.Cart;
 import com.lantin.unitrade.domain.po.Order;
 import com.lantin.unitrade.domain.po.OrderDetail;
+import com.lantin.unitrade.domain.po.PayOrder;
+import com.lantin.unitrade.enums.OrderCreateStatus;
 import com.lantin.unitrade.enums.OrderStatus;
 import com.lantin.unitrade.enums.PayStatus;
+import com.lantin.unitrade.enums.PayType;
 import com.lantin.unitrade.exception.BadRequestException;
+import com.lantin.unitrade.exception.BizIllegalException;
 import com.lantin.unitrade.mapper.OrderMapper;
 import com.lantin.unitrade.service.*;
+import com.lantin.unitrade.utils.CollUtils;
 import com.lantin.unitrade.utils.RabbitMqHelper;
-import com.lantin.unitrade.utils.RedisIdWorker;
+import com.lantin.unitrade.utils.SegmentIdWorker;
 import com.lantin.unitrade.utils.UserHolder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.amqp.AmqpException;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessagePostProcessor;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 import static com.lantin.unitrade.constant.MQConstants.*;
@@ -55,13 +65,22 @@ public class OrderServiceImpl extends ServiceImpl<OrderMapper, Order> implements
     private final RabbitTemplate rabbitTemplate;
     private final IOrderDetailService orderDetailService;
     private final RedissonClient redissonClient;
-    private final RedisIdWorker redisIdWorker;
+    private final SegmentIdWorker segmentIdWorker;
     private final StringRedisTemplate stringRedisTemplate;
     private final RabbitMqHelper rabbitMqHelper;
+    private final IStockService stockService;
+    private final OrderProperties orderProperties;
+    private final IOrderStatusService orderStatusService;
+    // 异步下单线程池
+    private ExecutorService intakeExecutor;
     // private final MessagePostProcessor userInfoPostProcessor;
 
     // 商品秒杀业务lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    // 秒杀脚本返回的结果码：库存不足、重复下单
+    private static final long SECKILL_SOLD_OUT = 1L;
+    private static final long SECKILL_DUPLICATE = 2L;
+
 
     // 利用静态代码块加载lua脚本
     static {
@@ -73,6 +92,7 @@ public class OrderServiceImpl extends ServiceImpl<OrderMapper, Order> implements
 
     /**
      * 下单
+     * 用lua脚本一次性判断并预扣所有商品的redis库存，不需要全局锁，库存不足时直接失败，不会发送创建订单的消息
      * @param orderFormDTO
      * @return
      */
@@ -80,64 +100,172 @@ public class OrderServiceImpl extends ServiceImpl<OrderMapper, Order> implements
     public Long placeOrder(OrderFormDTO orderFormDTO) {
         // 1. 获取当前用户id
         UserDTO user = UserHolder.getUser();
-        // 2. 生成订单id（是否真正生成订单由lua脚本判断）
-        long orderId = redisIdWorker.nextId(RedisConstants.ORDER_PREFIX);    // 生成全局唯一且递增的订单id
-        // 3. 加分布式锁，确保判断库存和扣库存的原子性
+        // 2. 生成订单id
+        long orderId = segmentIdWorker.nextId(RedisConstants.ORDER_PREFIX);    // 生成全局唯一且趋势递增的订单id（号段模式，大部分不需要访问redis）
+
+        // 3. 原子地判断并预扣所有商品的库存
         List<OrderDetailDTO> detailDTOS = orderFormDTO.getDetails();
-        // 由于要原子性地判断多个商品的库存，这里给订单服务整个加锁，操作redis比较快，影响应该不大
-        RLock lock = redissonClient.getLock(LOCK_GEN_ORDER_KEY);
-        boolean enough = true; // 所有商品库存都足够则为true
+        stockService.reserve(detailDTOS, user.getId());
+
+        // 预扣成功之后的任何一步失败都要归还预扣的库存
         try {
-            boolean getLock = lock.tryLock(2, TimeUnit.SECONDS);    // 如果2秒内没获取到锁则返回false
-            if (getLock) {
-                // 获取锁成功，判断所有商品的库存是否充足
-                for (OrderDetailDTO detailDTO : detailDTOS) {
-                    // 判断redis中记录的商品库存是否充足
-                    String stockKey = ITEM_STOCK_KEY + detailDTO.getItemId();
-                    String stockStr = stringRedisTemplate.opsForValue().get(stockKey);
-                    if (StrUtil.isBlank(stockStr)) {
-                        enough = false;
-                        log.error("缓存中商品库存不存在！");
-                        break;
-                    }
-                    int stock = Integer.parseInt(stockStr);
-                    if (stock < detailDTO.getNum()) {   // 库存不够购买量
-                        // 库存不足
-                        enough = false;
-                        log.error("商品库存不足！");
-                        break;
-                    }
-                }
-                // 如果所有商品库存都充足，则统一扣减redis库存
-                if (enough) {
-                    for (OrderDetailDTO detailDTO : detailDTOS) {
-                        String stockKey = ITEM_STOCK_KEY + detailDTO.getItemId();
-                        stringRedisTemplate.opsForValue().decrement(stockKey, detailDTO.getNum());
-                    }
+            // 记录下单处理状态，必须在发送消息之前，否则可能覆盖消费者写入的已创建状态
+            orderStatusService.reserve(orderId, user.getId());
+            // 4. 发送包含订单id及购物车列表地消息到MQ异步创建订单和扣减库存
+            rabbitMqHelper.sendMessageWithConfirm(ORDER_DIRECT_EXCHANGE, ORDER_SUCCESS_ROUTINGKEY, orderFormDTO, message -> {
+                // 将用户信息和生成的订单id放入消息头
+                message.getMessageProperties().setHeader("user-info", user);
+                message.getMessageProperties().setHeader("order-id", orderId);
+                return message;
+            }, 3); // 生产者最多重试三次
+        } catch (Exception e) {
+            // 状态没写成功或者消息没有发出去，订单不会被创建，归还预扣的库存
+            log.error("下单失败，归还预扣库存，订单id：{}", orderId, e);
+            stockService.release(detailDTOS, user.getId());
+            try {
+                orderStatusService.remove(orderId);
+            } catch (Exception ex) {
+                log.warn("删除下单处理状态失败，订单id：{}", orderId, ex);
+            }
+            throw new BizIllegalException("下单失败，请稍后重试", e);
+        }
+        return orderId; // 将生成的订单id返回给前端
+    }
+
+
+    /**
+     * 异步下单
+     * 预扣库存和发送消息都在下单线程池中执行，不占用servlet线程，线程池满时直接拒绝
+     * 返回订单id后客户端通过下单处理状态轮询订单是否创建成功
+     * @param orderFormDTO
+     * @return
+     */
+    @Override
+    public CompletableFuture<Long> placeOrderAsync(OrderFormDTO orderFormDTO) {
+        UserDTO user = UserHolder.getUser();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                // 用户信息保存在ThreadLocal中，要传递到下单线程
+                UserHolder.saveUser(user);
+                try {
+                    return placeOrder(orderFormDTO);
+                } finally {
+                    UserHolder.removeUser();
                 }
-                // 发送包含订单id及购物车列表地消息到MQ异步创建订单和扣减库存
-                rabbitMqHelper.sendMessageWithConfirm(ORDER_DIRECT_EXCHANGE, ORDER_SUCCESS_ROUTINGKEY, orderFormDTO, message -> {
-                    // 将用户信息和生成的订单id放入消息头
-                    message.getMessageProperties().setHeader("user-info", user);
-                    message.getMessageProperties().setHeader("order-id", orderId);
-                    return message;
-                }, 3); // 生产者最多重试三次
-            } else {
-                // 锁获取失败，处理超时逻辑
-                log.error("下单获取锁超时！");
+            }, intakeExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            future.completeExceptionally(new BizIllegalException("系统繁忙，请稍后重试"));
+            return future;
+        }
+    }
+
+
+    @PostConstruct
+    public void init() {
+        OrderProperties.Intake config = orderProperties.getIntake();
+        intakeExecutor = new ThreadPoolExecutor(config.getCoreSize(), config.getMaxSize(),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(config.getQueueCapacity()),
+                new NamedThreadFactory("order-intake-", false), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        intakeExecutor.shutdown();
+    }
+
+
+    /**
+     * 秒杀下单
+     * 由seckill.lua原子地完成一人一单判断、扣减redis库存并写入redis stream，订单由SeckillOrderListener异步批量创建
+     * 整个过程不加锁，不经过RabbitMQ
+     * @param itemId
+     * @return 订单id
+     */
+    @Override
+    public Long seckill(Long itemId) {
+        Long userId = UserHolder.getUser().getId();
+        long orderId = segmentIdWorker.nextId(RedisConstants.ORDER_PREFIX);
+        String orderKey = SECKILL_ORDER_KEY + itemId;
+        // 分片库存时当前分片卖完了就尝试下一个分片
+        Long result = null;
+        for (String stockKey : stockService.stockKeys(itemId, userId)) {
+            result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    Arrays.asList(stockKey, orderKey, SECKILL_STREAM_KEY, ITEM_STOCK_JOURNAL_KEY,
+                            ORDER_STATUS_KEY + orderId, SECKILL_STREAM_INDEX_KEY),
+                    itemId.toString(), userId.toString(), String.valueOf(orderId),
+                    String.valueOf(orderProperties.getIntake().getStatusTtl().getSeconds()));
+            if (result == null || result != SECKILL_SOLD_OUT) {
+                break;
             }
-        } catch (InterruptedException e) {
-            // 线程在等待锁时被中断
-            log.error("下单等待锁时被中断！");
-        } finally {
-            // 解锁
-            if (lock.isLocked()) {
-                lock.unlock();
+        }
+        if (result == null) {
+            throw new BizIllegalException("秒杀失败，请稍后重试");
+        }
+        if (result == SECKILL_SOLD_OUT) {
+            throw new BizIllegalException("库存不足");
+        }
+        if (result == SECKILL_DUPLICATE) {
+            throw new BizIllegalException("不能重复下单");
+        }
+        return orderId;
+    }
+
+
+    /**
+     * 批量创建秒杀订单，由SeckillOrderListener从redis stream中批量读取后调用
+     * 一个事务内完成订单和订单详情的写入，已存在的订单直接跳过（消息可能被重复投递）
+     * @param seckillOrders
+     */
+    @Override
+    @Transactional
+    public void createSeckillOrders(List<SeckillOrderDTO> seckillOrders) {
+        // 1. 幂等性判断，去掉已经创建过的订单
+        Set<Long> orderIds = seckillOrders.stream().map(SeckillOrderDTO::getId).collect(Collectors.toSet());
+        Set<Long> existed = lambdaQuery().select(Order::getId).in(Order::getId, orderIds).list()
+                .stream().map(Order::getId).collect(Collectors.toSet());
+        List<SeckillOrderDTO> toCreate = seckillOrders.stream()
+                .filter(o -> !existed.contains(o.getId()))
+                .collect(Collectors.toList());
+        if (toCreate.isEmpty()) {
+            return;
+        }
+
+        // 2. 查询商品
+        Set<Long> itemIds = toCreate.stream().map(SeckillOrderDTO::getItemId).collect(Collectors.toSet());
+        Map<Long, ItemDTO> itemMap = itemService.queryItemByIds(itemIds).stream()
+                .collect(Collectors.toMap(ItemDTO::getId, item -> item));
+
+        // 3. 组装订单和订单详情，每个秒杀订单只有一件商品
+        List<Order> orders = new ArrayList<>(toCreate.size());
+        List<OrderDetail> details = new ArrayList<>(toCreate.size());
+        for (SeckillOrderDTO seckillOrder : toCreate) {
+            ItemDTO item = itemMap.get(seckillOrder.getItemId());
+            if (item == null) {
+                throw new BadRequestException("商品不存在，商品id：" + seckillOrder.getItemId());
             }
+            Order order = new Order();
+            order.setId(seckillOrder.getId());
+            order.setUserId(seckillOrder.getUserId());
+            order.setTotalFee(item.getPrice());
+            order.setPaymentType(PayType.BALANCE.getValue());
+            order.setStatus(OrderStatus.UNPAID.getValue());
+            orders.add(order);
+            details.addAll(buildDetails(order.getId(), CollUtils.singletonList(item),
+                    Collections.singletonMap(item.getId(), 1)));
         }
-        return orderId; // 将生成的订单id返回给前端
+        getBaseMapper().insertBatch(orders);
+        orderDetailService.insertBatch(details);
+        // 数据库库存不在这里扣减，由StockWriteBackService根据seckill.lua记录的库存流水合并后写回
+
+        // 4. 登记支付超时时间，检测订单支付状态
+        List<Long> createdIds = orders.stream().map(Order::getId).collect(Collectors.toList());
+        registerTimeout(createdIds);
+        orderStatusService.updateAfterCommit(createdIds, OrderCreateStatus.CREATED);
+        log.info("批量创建秒杀订单{}个", orders.size());
     }
 
+
     /**
      * 生成订单，下单成功后执行，从消息队列中取出消息异步处理
      * @param orderFormDTO
@@ -189,21 +317,147 @@ public class OrderServiceImpl extends ServiceImpl<OrderMapper, Order> implements
             return message;
         });
 
-        // 4.扣减库存（修改数据库商品表中的库存）
-        try {
-            itemService.deductStock(detailDTOS);
-        } catch (Exception e) {
-            throw new RuntimeException("库存不足！");
+        // 4.数据库库存不在这里扣减，预扣redis库存时已经记录了库存流水，由StockWriteBackService合并后写回，避免热点商品的行锁竞争
+
+        // 5. 登记支付超时时间，到期后由OrderTimeoutListener批量检测订单支付状态（检查是否支付超时）
+        registerTimeout(CollUtils.singletonList(orderId));
+        orderStatusService.updateAfterCommit(CollUtils.singletonList(orderId), OrderCreateStatus.CREATED);
+
+        return order.getId();
+    }
+
+
+    /**
+     * 批量生成订单，由BatchCreateOrderListener攒够一批下单成功消息后调用
+     * 一个事务内用多行insert写入所有订单和订单详情
+     * @param orderCreates
+     */
+    @Override
+    @Transactional
+    public void createOrders(List<OrderCreateDTO> orderCreates) {
+        // 1. 幂等性判断，去掉已经创建过的订单和同一批中重复投递的消息
+        Set<Long> orderIds = orderCreates.stream().map(OrderCreateDTO::getOrderId).collect(Collectors.toSet());
+        Set<Long> existed = lambdaQuery().select(Order::getId).in(Order::getId, orderIds).list()
+                .stream().map(Order::getId).collect(Collectors.toSet());
+        List<OrderCreateDTO> toCreate = orderCreates.stream()
+                .filter(o -> existed.add(o.getOrderId()))
+                .collect(Collectors.toList());
+        if (toCreate.isEmpty()) {
+            return;
         }
 
-        log.info("用户已下单，准备发送延迟消息...");
+        // 2. 一次查出这一批涉及的所有商品
+        Set<Long> itemIds = toCreate.stream()
+                .flatMap(o -> o.getOrderForm().getDetails().stream())
+                .map(OrderDetailDTO::getItemId)
+                .collect(Collectors.toSet());
+        Map<Long, ItemDTO> itemMap = itemService.queryItemByIds(itemIds).stream()
+                .collect(Collectors.toMap(ItemDTO::getId, item -> item));
 
-        // 5. 发送延迟消息，一段时间后检测订单支付状态（检查是否支付超时）
-        rabbitMqHelper.sendDelayMessage(DELAY_EXCHANGE, DELAY_ORDER_KEY, orderId, 10000); // 延迟时间为方便测试设成10秒
+        // 3. 组装订单和订单详情
+        List<Order> orders = new ArrayList<>(toCreate.size());
+        List<OrderDetail> details = new ArrayList<>();
+        for (OrderCreateDTO orderCreate : toCreate) {
+            Map<Long, Integer> itemNumMap = orderCreate.getOrderForm().getDetails().stream()
+                    .collect(Collectors.toMap(OrderDetailDTO::getItemId, OrderDetailDTO::getNum));
+            List<ItemDTO> items = new ArrayList<>(itemNumMap.size());
+            int total = 0;
+            for (Map.Entry<Long, Integer> entry : itemNumMap.entrySet()) {
+                ItemDTO item = itemMap.get(entry.getKey());
+                if (item == null) {
+                    throw new BadRequestException("商品不存在，商品id：" + entry.getKey());
+                }
+                items.add(item);
+                total += item.getPrice() * entry.getValue();
+            }
+            Order order = new Order();
+            order.setId(orderCreate.getOrderId());
+            order.setTotalFee(total);
+            order.setPaymentType(orderCreate.getOrderForm().getPaymentType());
+            order.setUserId(orderCreate.getUser().getId());
+            order.setStatus(OrderStatus.UNPAID.getValue());
+            orders.add(order);
+            details.addAll(buildDetails(order.getId(), items, itemNumMap));
+        }
+        getBaseMapper().insertBatch(orders);
+        orderDetailService.insertBatch(details);
+        // 数据库库存由StockWriteBackService根据库存流水写回
 
-        return order.getId();
+        // 4. 清理购物车，登记支付超时时间
+        for (OrderCreateDTO orderCreate : toCreate) {
+            Set<Long> cartItemIds = orderCreate.getOrderForm().getDetails().stream()
+                    .map(OrderDetailDTO::getItemId)
+                    .collect(Collectors.toSet());
+            rabbitMqHelper.sendMessage(ORDER_TOPIC_EXCHANGE, CART_CLEAR_ROUTINGKEY, cartItemIds, message -> {
+                message.getMessageProperties().setHeader("user-info", orderCreate.getUser());
+                return message;
+            });
+        }
+        List<Long> createdIds = orders.stream().map(Order::getId).collect(Collectors.toList());
+        registerTimeout(createdIds);
+        orderStatusService.updateAfterCommit(createdIds, OrderCreateStatus.CREATED);
+        log.info("批量创建订单{}个", orders.size());
+    }
+
+    /**
+     * 登记订单的支付超时时间
+     * 所有订单放在一个zset中按超时时间排序，不需要每个订单一条延迟消息
+     * @param orderIds
+     */
+    private void registerTimeout(List<Long> orderIds) {
+        double deadline = System.currentTimeMillis() + orderProperties.getTimeout().getPayTimeout().toMillis();
+        Set<ZSetOperations.TypedTuple<String>> tuples = orderIds.stream()
+                .map(id -> new DefaultTypedTuple<>(id.toString(), deadline))
+                .collect(Collectors.toSet());
+        stringRedisTemplate.opsForZSet().add(ORDER_TIMEOUT_KEY, tuples);
+    }
+
+
+    /**
+     * 处理一批支付超时的订单
+     * 一次查出仍未支付的订单及其中已经支付成功的支付单，已支付的批量标记为已支付（只是没有收到支付通知），其余批量取消
+     * @param orderIds
+     */
+    @Override
+    @Transactional
+    public void closeTimeoutOrders(Collection<Long> orderIds) {
+        if (CollUtils.isEmpty(orderIds)) {
+            return;
+        }
+        // 1. 锁住仍未支付的订单，已经支付或取消的不再处理
+        List<Long> unpaidIds = lambdaQuery()
+                .select(Order::getId)
+                .in(Order::getId, orderIds)
+                .eq(Order::getStatus, OrderStatus.UNPAID.getValue())
+                .last("FOR UPDATE")
+                .list()
+                .stream().map(Order::getId).collect(Collectors.toList());
+        if (unpaidIds.isEmpty()) {
+            return;
+        }
+
+        // 2. 查询其中已经支付成功的
+        Set<Long> paidIds = payOrderService.lambdaQuery()
+                .select(PayOrder::getBizOrderNo)
+                .in(PayOrder::getBizOrderNo, unpaidIds)
+                .eq(PayOrder::getStatus, PayStatus.TRADE_SUCCESS.getValue())
+                .list()
+                .stream().map(PayOrder::getBizOrderNo).collect(Collectors.toSet());
+        if (!paidIds.isEmpty()) {
+            lambdaUpdate()
+                    .set(Order::getStatus, OrderStatus.PAID.getValue())
+                    .set(Order::getPayTime, LocalDateTime.now())
+                    .in(Order::getId, paidIds)
+                    .update();
+        }
+
+        // 3. 其余的取消，这些订单在第1步已经锁住了
+        List<Long> cancelIds = unpaidIds.stream().filter(id -> !paidIds.contains(id)).collect(Collectors.toList());
+        closeOrders(cancelIds);
+        log.info("处理支付超时订单{}个，其中已支付{}个，取消{}个", unpaidIds.size(), paidIds.size(), cancelIds.size());
     }
 
+
     /**
      * 检查订单是否已经存在
      * @param orderId
@@ -251,37 +505,93 @@ public class OrderServiceImpl extends ServiceImpl<OrderMapper, Order> implements
     @Override
     @Transactional
     public void cancelOrder(Long orderId) {
-        // 1. 幂等性判断
-        Order order = getById(orderId);
-        // 如果业务单状态已经是已取消，直接结束
-        if (order == null || OrderStatus.CANCEL.equalsValue(order.getStatus())) {
-            return;
+        cancelOrders(CollUtils.singletonList(orderId));
+    }
+
+
+    /**
+     * 批量取消订单，关闭支付单并恢复库存
+     * 只锁住未付款的订单并处理这些订单，已付款、已完成、已取消的跳过，重复取消或者并发取消同一个订单时库存只会恢复一次
+     * @param orderIds
+     * @return 本次实际取消的订单id
+     */
+    @Override
+    @Transactional
+    public List<Long> cancelOrders(Collection<Long> orderIds) {
+        return cancelUnpaidOrders(orderIds, null);
+    }
+
+
+    /**
+     * 当前用户批量取消自己的订单，不属于当前用户的订单跳过
+     * @param orderIds
+     * @return 本次实际取消的订单id
+     */
+    @Override
+    @Transactional
+    public List<Long> cancelMyOrders(Collection<Long> orderIds) {
+        return cancelUnpaidOrders(orderIds, UserHolder.getUser().getId());
+    }
+
+
+    /**
+     * 锁住并取消未付款的订单
+     * @param orderIds
+     * @param userId 不为空时只取消该用户的订单
+     * @return 本次实际取消的订单id
+     */
+    private List<Long> cancelUnpaidOrders(Collection<Long> orderIds, Long userId) {
+        if (CollUtils.isEmpty(orderIds)) {
+            return CollUtils.emptyList();
+        }
+        // 1. 只锁未付款的，幂等性判断，已经取消的直接跳过
+        List<Long> cancelIds = lambdaQuery()
+                .select(Order::getId)
+                .in(Order::getId, orderIds)
+                .eq(userId != null, Order::getUserId, userId)
+                .eq(Order::getStatus, OrderStatus.UNPAID.getValue())
+                .last("FOR UPDATE")
+                .list()
+                .stream().map(Order::getId).collect(Collectors.toList());
+        if (cancelIds.size() < orderIds.size()) {
+            log.info("取消订单时跳过{}个不存在、不属于当前用户或不是未付款状态的订单", orderIds.size() - cancelIds.size());
         }
+        // 2. 关闭订单
+        closeOrders(cancelIds);
+        return cancelIds;
+    }
+
 
-        // 2. 标记业务订单状态为已取消
+    /**
+     * 关闭已经锁住的订单：标记业务订单和支付单为已取消/已关闭，恢复库存
+     * 每一步都是一条语句，和订单数量无关
+     * @param orderIds
+     */
+    private void closeOrders(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        // 1. 标记业务订单状态为已取消
         lambdaUpdate()
                 .set(Order::getStatus, OrderStatus.CANCEL.getValue())
                 .set(Order::getCloseTime, LocalDateTime.now())
-                .eq(Order::getId, orderId)
+                .in(Order::getId, orderIds)
                 .update();
 
-        // 3. 修改支付单状态为已关闭（支付超时或取消订单了）
-        payOrderService.updateStatusByOrderId(orderId, PayStatus.TRADE_CLOSED.getValue());
+        // 2. 修改支付单状态为已关闭（支付超时或取消订单了）
+        payOrderService.lambdaUpdate()
+                .set(PayOrder::getStatus, PayStatus.TRADE_CLOSED.getValue())
+                .in(PayOrder::getBizOrderNo, orderIds)
+                .update();
 
-        // 4. 恢复库存
-        // 4.1 查询本条订单中的商品及数量
-        List<OrderDetail> orderDetails = orderDetailService
-                .query()
-                .eq("order_id", orderId)
+        // 3. 恢复库存
+        // 3.1 查询这些订单中的商品及数量
+        List<OrderDetail> details = orderDetailService.lambdaQuery()
+                .select(OrderDetail::getItemId, OrderDetail::getNum)
+                .in(OrderDetail::getOrderId, orderIds)
                 .list();
-        List<OrderDetailDTO> detailDTOS = BeanUtil.copyToList(orderDetails, OrderDetailDTO.class);
-
-        try {
-            // 4.2 恢复商品库存
-            itemService.restoreStock(detailDTOS);
-        } catch (Exception e) {
-            throw new RuntimeException("恢复库存出错！");
-        }
+        // 3.2 同一商品合并后批量恢复数据库和redis库存
+        itemService.restoreStock(BeanUtil.copyToList(details, OrderDetailDTO.class));
     }
 
 
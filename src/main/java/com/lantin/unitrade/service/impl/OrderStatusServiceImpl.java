@@ -0,0 +1,228 @@
+package com.lantin.unitrade.service.impl;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.lantin.unitrade.config.OrderProperties;
+import com.lantin.unitrade.domain.po.Order;
+import com.lantin.unitrade.enums.OrderCreateStatus;
+import com.lantin.unitrade.mapper.OrderMapper;
+import com.lantin.unitrade.service.IOrderStatusService;
+import com.lantin.unitrade.utils.CollUtils;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.lantin.unitrade.constant.RedisConstants.*;
+
+/**
+ * 下单处理状态服务
+ * 状态保存为hash：status -> 状态值，userId -> 下单用户，查询时只返回当前用户自己的订单状态
+ * redis中没有状态时查一次数据库，结果写回redis，不存在的订单缓存空值，轮询不会每次都打到数据库
+ * @Author lantin
+ * @Date 2024/8/13
+ */
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class OrderStatusServiceImpl implements IOrderStatusService {
+
+    // 广播消息中订单id和状态的分隔符，多个订单之间用换行分隔
+    private static final String SEPARATOR = ":";
+    private static final String ORDER_SEPARATOR = "\n";
+    // 状态hash的字段，seckill.lua中使用相同的字段名
+    private static final String STATUS_FIELD = "status";
+    private static final String USER_FIELD = "userId";
+    // 订单不存在时status字段写入空值
+    private static final String NULL_VALUE = "";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final OrderMapper orderMapper;
+    private final OrderProperties orderProperties;
+
+    // 订单id -> 本节点上正在等待该订单状态变化的请求
+    private final Map<Long, Set<DeferredResult<OrderCreateStatus>>> waiters = new ConcurrentHashMap<>();
+    private RTopic statusTopic;
+
+
+    @PostConstruct
+    public void init() {
+        statusTopic = redissonClient.getTopic(ORDER_STATUS_TOPIC, StringCodec.INSTANCE);
+        statusTopic.addListener(String.class, (channel, msg) -> {
+            for (String entry : msg.split(ORDER_SEPARATOR)) {
+                String[] parts = entry.split(SEPARATOR);
+                notifyWaiters(Long.valueOf(parts[0]), OrderCreateStatus.of(Integer.parseInt(parts[1])));
+            }
+        });
+    }
+
+
+    @Override
+    public void reserve(Long orderId, Long userId) {
+        save(orderId, OrderCreateStatus.RESERVED, userId, orderProperties.getIntake().getStatusTtl().getSeconds());
+    }
+
+
+    @Override
+    public void update(Collection<Long> orderIds, OrderCreateStatus status) {
+        if (CollUtils.isEmpty(orderIds)) {
+            return;
+        }
+        long ttl = orderProperties.getIntake().getStatusTtl().getSeconds();
+        byte[] field = bytes(STATUS_FIELD);
+        byte[] value = bytes(String.valueOf(status.getValue()));
+        // 只改状态字段，保留下单时写入的用户
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long orderId : orderIds) {
+                byte[] key = bytes(ORDER_STATUS_KEY + orderId);
+                connection.hSet(key, field, value);
+                connection.expire(key, ttl);
+            }
+            return null;
+        });
+        // 只有最终状态需要唤醒等待的请求
+        if (!status.isFinal()) {
+            return;
+        }
+        List<String> entries = new ArrayList<>(orderIds.size());
+        for (Long orderId : orderIds) {
+            entries.add(orderId + SEPARATOR + status.getValue());
+        }
+        try {
+            statusTopic.publish(String.join(ORDER_SEPARATOR, entries));
+        } catch (Exception e) {
+            // 广播失败时等待的请求在超时后会重新查询状态
+            log.error("广播下单处理状态失败", e);
+        }
+    }
+
+
+    @Override
+    public void updateAfterCommit(Collection<Long> orderIds, OrderCreateStatus status) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            update(orderIds, status);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                update(orderIds, status);
+            }
+        });
+    }
+
+
+    @Override
+    public void remove(Long orderId) {
+        stringRedisTemplate.delete(ORDER_STATUS_KEY + orderId);
+    }
+
+
+    @Override
+    public OrderCreateStatus get(Long orderId, Long userId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(ORDER_STATUS_KEY + orderId, Arrays.asList(STATUS_FIELD, USER_FIELD));
+        Object status = values.get(0);
+        Object owner = values.get(1);
+        if (NULL_VALUE.equals(status)) {
+            // 缓存的空值，订单不存在
+            return null;
+        }
+        if (status != null && owner != null) {
+            // 不是自己的订单当作不存在
+            return owner.toString().equals(userId.toString()) ? OrderCreateStatus.of(Integer.parseInt(status.toString())) : null;
+        }
+
+        // 状态已经过期，或者下单时写入的状态过期后才被消费者更新，缺少下单用户，查数据库
+        Order order = orderMapper.selectOne(Wrappers.<Order>lambdaQuery()
+                .select(Order::getId, Order::getUserId)
+                .eq(Order::getId, orderId));
+        if (order == null) {
+            if (status == null) {
+                // 订单不存在，缓存空值，有效期要短一些
+                stringRedisTemplate.opsForHash().put(ORDER_STATUS_KEY + orderId, STATUS_FIELD, NULL_VALUE);
+                stringRedisTemplate.expire(ORDER_STATUS_KEY + orderId, CACHE_NULL_TTL, TimeUnit.MINUTES);
+            }
+            return null;
+        }
+        // 订单存在就说明创建成功了，写回redis
+        OrderCreateStatus created = status == null ? OrderCreateStatus.CREATED : OrderCreateStatus.of(Integer.parseInt(status.toString()));
+        save(orderId, created, order.getUserId(), orderProperties.getIntake().getStatusTtl().getSeconds());
+        return Objects.equals(order.getUserId(), userId) ? created : null;
+    }
+
+
+    @Override
+    public DeferredResult<OrderCreateStatus> await(Long orderId, Long userId, long waitMillis) {
+        long timeout = Math.min(Math.max(waitMillis, 0), orderProperties.getIntake().getMaxWait().toMillis());
+        DeferredResult<OrderCreateStatus> result = new DeferredResult<>(timeout);
+        OrderCreateStatus status = get(orderId, userId);
+        if (timeout == 0 || status == null || status.isFinal()) {
+            result.setResult(status);
+            return result;
+        }
+
+        // 先登记再查一次，防止在查询和登记之间状态已经变化，错过了广播
+        Set<DeferredResult<OrderCreateStatus>> set = waiters.computeIfAbsent(orderId, id -> ConcurrentHashMap.newKeySet());
+        set.add(result);
+        result.onTimeout(() -> result.setResult(get(orderId, userId)));
+        result.onCompletion(() -> removeWaiter(orderId, result));
+        status = get(orderId, userId);
+        if (status != null && status.isFinal()) {
+            result.setResult(status);
+        }
+        return result;
+    }
+
+
+    private void save(Long orderId, OrderCreateStatus status, Long userId, long ttl) {
+        byte[] key = bytes(ORDER_STATUS_KEY + orderId);
+        Map<byte[], byte[]> hash = new HashMap<>(2);
+        hash.put(bytes(STATUS_FIELD), bytes(String.valueOf(status.getValue())));
+        hash.put(bytes(USER_FIELD), bytes(userId.toString()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hMSet(key, hash);
+            connection.expire(key, ttl);
+            return null;
+        });
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void notifyWaiters(Long orderId, OrderCreateStatus status) {
+        Set<DeferredResult<OrderCreateStatus>> set = waiters.remove(orderId);
+        if (set != null) {
+            set.forEach(result -> result.setResult(status));
+        }
+    }
+
+    private void removeWaiter(Long orderId, DeferredResult<OrderCreateStatus> result) {
+        waiters.computeIfPresent(orderId, (id, set) -> {
+            set.remove(result);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
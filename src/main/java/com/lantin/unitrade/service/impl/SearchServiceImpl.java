@@ -1,85 +1,354 @@
 package com.lantin.unitrade.service.impl;
 
+import cn.hutool.core.codec.Base64;
 import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 
+import com.lantin.unitrade.config.SearchProperties;
+import com.lantin.unitrade.domain.dto.ItemCursorQuery;
 import com.lantin.unitrade.domain.dto.ItemDTO;
 import com.lantin.unitrade.domain.dto.ItemPageQuery;
 import com.lantin.unitrade.domain.dto.PageDTO;
+import com.lantin.unitrade.domain.vo.ItemCursorVO;
+import com.lantin.unitrade.domain.vo.ItemSearchVO;
+import com.lantin.unitrade.exception.BadRequestException;
 import com.lantin.unitrade.service.ISearchService;
-import org.apache.http.HttpHost;
+import com.lantin.unitrade.utils.CacheMetrics;
+import com.lantin.unitrade.utils.NearCache;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.ElasticsearchStatusException;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.lucene.search.function.CombineFunction;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
 import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.filter.Filter;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
 import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.stereotype.Service;
 
-import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import static com.lantin.unitrade.constant.RedisConstants.CACHE_SEARCH_FACETS_KEY;
+import static com.lantin.unitrade.constant.RedisConstants.CACHE_SEARCH_FILTERS_KEY;
+import static com.lantin.unitrade.constant.RedisConstants.CACHE_SEARCH_LIST_KEY;
+
+@Slf4j
 @Service
+@RequiredArgsConstructor
 public class SearchServiceImpl implements ISearchService {
 
-    private RestHighLevelClient client;
+    private static final String CATEGORY = "category";
+    private static final String BRAND = "brand";
+    private static final String PRICE = "price";
+    private static final String ID = "id";
+    // 需要返回过滤项的字段
+    private static final List<String> FACET_FIELDS = List.of(CATEGORY, BRAND);
 
-    @PostConstruct  // 在bean创建之后就会执行该方法，用于创建RestHighLevelClient实例。
-    public void initRestHighLevelClient() {
-        client = new RestHighLevelClient(RestClient.builder(
-                HttpHost.create("http://127.0.0.1:9200")
-        ));
-    }
+    // 客户端由ElasticsearchConfig创建，与索引同步共用
+    private final RestHighLevelClient client;
+    private final SearchProperties searchProperties;
+    private final NearCache nearCache;
+    private final CacheMetrics cacheMetrics;
 
-    @PreDestroy // 确保在Bean销毁之前被调用，用于关闭RestHighLevelClient实例。
-    public void closeRestHighLevelClient() {
-        if (client != null) {
-            try {
-                client.close();
-            } catch (IOException e) {
-                // 处理异常，例如记录日志或抛出运行时异常
-                throw new RuntimeException("Failed to close RestHighLevelClient", e);
-            }
+
+    /**
+     * 在elasticsearch中搜索商品信息
+     * 少量热门的关键字、分类、品牌组合占了大部分请求，结果按规范化后的查询条件在本地缓存很短的时间，
+     * 商品索引有变更时整体失效
+     * @param query
+     * @return
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public PageDTO<ItemDTO> searchItemsInfo(ItemPageQuery query) throws IOException {
+        normalizeQuery(query);
+        String key = CACHE_SEARCH_LIST_KEY + normalize(query);
+        PageDTO<ItemDTO> cached = (PageDTO<ItemDTO>) nearCache.get(key);
+        if (cached != null) {
+            cacheMetrics.localHit(key);
+            return cached;
         }
+        cacheMetrics.miss(key);
+        PageDTO<ItemDTO> result = doSearchItemsInfo(query);
+        nearCache.put(key, result);
+        return result;
     }
 
 
     /**
-     * 在elasticsearch中搜索商品信息
      * 加入竞价排名（算分函数），购买了广告位的商品排在最前面
      * @param query
      * @return
      */
-    @Override
-    public PageDTO<ItemDTO> searchItemsInfo(ItemPageQuery query) throws IOException {
+    private PageDTO<ItemDTO> doSearchItemsInfo(ItemPageQuery query) throws IOException {
         // 1. 创建request对象
-        SearchRequest request = new SearchRequest("items");
+        SearchRequest request = new SearchRequest(searchProperties.getIndex());
 
         // 2. 组织DSL参数
-        // 2.1 根据前端传来的查询条件选择性添加bool查询条件
-        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
-        // 2.1.1 按关键字搜索并将广告位商品排在最前
+        // 2.1 算分查询放在must中，过滤条件放在filter中，不参与算分
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery().must(scoreQuery(query.getKey()));
+        filterQueries(query).values().forEach(boolQueryBuilder::filter);
+        request.source().query(boolQueryBuilder);
+
+        // 2.2 排序和分页
+        sortAndPage(request, query);
+
+        // 3. 发送请求
+        SearchResponse response = client.search(request, RequestOptions.DEFAULT);
+
+        // 4. 解析结果并封装后返回
+        return parseSearchResult(response, query.getPageNo());
+    }
+
+
+    /**
+     * 一次请求同时搜索商品和过滤项，前端不用再为同一个关键字分别调用搜索和过滤项两个接口
+     * 过滤条件放在post_filter中，只过滤返回的商品，不影响聚合；
+     * 每个过滤项的聚合包在一个filter聚合里，应用除它自己以外的其他过滤条件，
+     * 这样选中某个分类后，其他分类仍然会出现，品牌的商品数也只统计选中分类中的商品
+     * @param query
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public ItemSearchVO searchItemsWithFacets(ItemPageQuery query) throws IOException {
+        normalizeQuery(query);
+        String key = CACHE_SEARCH_FACETS_KEY + normalize(query);
+        ItemSearchVO cached = (ItemSearchVO) nearCache.get(key);
+        if (cached != null) {
+            cacheMetrics.localHit(key);
+            return cached;
+        }
+        cacheMetrics.miss(key);
+
+        // 1. 关键字查询，算分
+        SearchRequest request = new SearchRequest(searchProperties.getIndex());
+        request.source().query(scoreQuery(query.getKey()));
+
+        // 2. 过滤条件放到post_filter
+        Map<String, QueryBuilder> filters = filterQueries(query);
+        if (!filters.isEmpty()) {
+            BoolQueryBuilder postFilter = QueryBuilders.boolQuery();
+            filters.values().forEach(postFilter::filter);
+            request.source().postFilter(postFilter);
+        }
+
+        // 3. 每个过滤项的聚合只应用其他字段的过滤条件
+        for (String field : FACET_FIELDS) {
+            BoolQueryBuilder others = QueryBuilders.boolQuery();
+            filters.forEach((f, filter) -> {
+                if (!f.equals(field)) {
+                    others.filter(filter);
+                }
+            });
+            request.source().aggregation(AggregationBuilders.filter(field, others)
+                    .subAggregation(AggregationBuilders.terms(field).field(field).size(10)));
+        }
+
+        // 4. 排序和分页
+        sortAndPage(request, query);
+
+        // 5. 发送请求并解析
+        SearchResponse response = client.search(request, RequestOptions.DEFAULT);
+        ItemSearchVO vo = new ItemSearchVO();
+        PageDTO<ItemDTO> page = parseSearchResult(response, query.getPageNo());
+        vo.setTotal(page.getTotal());
+        vo.setPages(page.getPages());
+        vo.setList(page.getList());
+        Map<String, Map<String, Long>> facets = new LinkedHashMap<>(FACET_FIELDS.size());
+        for (String field : FACET_FIELDS) {
+            Filter filterAgg = response.getAggregations().get(field);
+            Terms terms = filterAgg.getAggregations().get(field);
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (Terms.Bucket bucket : terms.getBuckets()) {
+                counts.put(bucket.getKeyAsString(), bucket.getDocCount());
+            }
+            facets.put(field, counts);
+        }
+        vo.setFacets(facets);
+
+        nearCache.put(key, vo);
+        return vo;
+    }
+
+
+    /**
+     * 游标分页搜索商品，用search_after代替from/size，每一页的开销与翻到第几页无关，也不受10000条的窗口限制
+     * 排序字段之后再按id排序，排序值相同的商品也有确定的先后顺序，不会在翻页时重复或遗漏
+     * 游标是上一页最后一条的排序值、时间点id和查询条件指纹编码后的字符串，对前端不透明，
+     * 带着游标换了查询条件会被拒绝；开启时间点时最后一页自动关闭时间点
+     * 游标分页不走结果缓存，深翻页的请求几乎不会重复
+     * @param query
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public ItemCursorVO searchItemsByCursor(ItemCursorQuery query) throws IOException {
+        // 1. 解析游标，第一页按需打开时间点
+        normalizeQuery(query);
+        String fingerprint = DigestUtil.md5Hex16(normalizeConditions(query));
+        Cursor cursor = StrUtil.isBlank(query.getCursor()) ? null : decodeCursor(query.getCursor(), fingerprint);
+        String pitId = cursor != null ? cursor.pitId : (Boolean.TRUE.equals(query.getPit()) ? openPit() : null);
+
+        // 2. 组织DSL参数，使用时间点时不能指定索引
+        SearchRequest request;
+        if (pitId != null) {
+            request = new SearchRequest();
+            request.source().pointInTimeBuilder(new PointInTimeBuilder(pitId)
+                    .setKeepAlive(TimeValue.timeValueMillis(searchProperties.getCursor().getPitKeepAlive().toMillis())));
+        } else {
+            request = new SearchRequest(searchProperties.getIndex());
+        }
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery().must(scoreQuery(query.getKey()));
+        filterQueries(query).values().forEach(boolQueryBuilder::filter);
+        request.source().query(boolQueryBuilder).size(query.getPageSize());
+        sort(request, query);
+        request.source().sort(ID, SortOrder.ASC);
+        if (cursor != null) {
+            // 总条数只在第一页统计
+            request.source().searchAfter(cursor.after).trackTotalHits(false);
+        }
+
+        // 3. 发送请求，时间点过期时es返回404
+        SearchResponse response;
+        try {
+            response = client.search(request, RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (pitId != null && e.status() == RestStatus.NOT_FOUND) {
+                throw new BadRequestException("游标已过期，请重新搜索");
+            }
+            throw e;
+        }
+
+        // 4. 解析结果，不满一页说明已经到底
+        SearchHit[] hits = response.getHits().getHits();
+        ItemCursorVO vo = new ItemCursorVO();
+        if (response.getHits().getTotalHits() != null) {
+            vo.setTotal(response.getHits().getTotalHits().value);
+        }
+        vo.setList(Arrays.stream(hits)
+                .map(hit -> JSONUtil.toBean(hit.getSourceAsString(), ItemDTO.class))
+                .collect(Collectors.toList()));
+        if (hits.length < query.getPageSize()) {
+            closePit(pitId);
+        } else {
+            // 时间点id可能在每次搜索后变化，用最新的
+            String nextPitId = response.pointInTimeId() != null ? response.pointInTimeId() : pitId;
+            vo.setCursor(encodeCursor(hits[hits.length - 1].getSortValues(), nextPitId, fingerprint));
+        }
+        return vo;
+    }
+
+
+    static String encodeCursor(Object[] after, String pitId, String fingerprint) {
+        JSONObject json = new JSONObject();
+        json.set("a", after);
+        json.set("p", pitId);
+        json.set("q", fingerprint);
+        return Base64.encodeUrlSafe(json.toString());
+    }
+
+    /**
+     * 解析游标，json解析出的小数是BigDecimal、超出long的整数是BigInteger，search_after不接受这两种类型，
+     * 转换为double和long，和es返回的排序值（算分是float，数值字段是long或double）对应
+     * @param token
+     * @param fingerprint 当前查询条件的指纹
+     * @return
+     */
+    static Cursor decodeCursor(String token, String fingerprint) {
+        JSONObject json;
+        try {
+            json = JSONUtil.parseObj(Base64.decodeStr(token));
+        } catch (Exception e) {
+            throw new BadRequestException("无效的游标");
+        }
+        if (!fingerprint.equals(json.getStr("q")) || json.getJSONArray("a") == null) {
+            throw new BadRequestException("游标与查询条件不匹配");
+        }
+        Cursor cursor = new Cursor();
+        cursor.after = json.getJSONArray("a").stream().map(SearchServiceImpl::sortValue).toArray();
+        cursor.pitId = json.getStr("p");
+        return cursor;
+    }
+
+    private static Object sortValue(Object value) {
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).doubleValue();
+        }
+        if (value instanceof BigInteger) {
+            return ((BigInteger) value).longValue();
+        }
+        // json中的null解析为JSONNull，排序字段缺失时es返回的排序值就是null
+        return JSONUtil.isNull(value) ? null : value;
+    }
+
+    /**
+     * 打开时间点，rest high level client 7.12还没有封装该接口，用low level client发送
+     * @return 时间点id
+     */
+    private String openPit() throws IOException {
+        Request request = new Request("POST", "/" + searchProperties.getIndex() + "/_pit");
+        request.addParameter("keep_alive", searchProperties.getCursor().getPitKeepAlive().toMillis() + "ms");
+        Response response = client.getLowLevelClient().performRequest(request);
+        return JSONUtil.parseObj(EntityUtils.toString(response.getEntity())).getStr("id");
+    }
+
+    /**
+     * 关闭时间点，释放es保留的段，失败了也会在keep_alive后自动过期
+     * @param pitId
+     */
+    private void closePit(String pitId) {
+        if (pitId == null) {
+            return;
+        }
+        Request request = new Request("DELETE", "/_pit");
+        request.setJsonEntity(new JSONObject().set("id", pitId).toString());
+        try {
+            client.getLowLevelClient().performRequest(request);
+        } catch (Exception e) {
+            log.warn("关闭时间点失败：{}", e.getMessage());
+        }
+    }
+
+
+    /**
+     * 按关键字搜索并将广告位商品排在最前
+     * @param key 关键字
+     * @return
+     */
+    private QueryBuilder scoreQuery(String key) {
         // 构建原始查询
         QueryBuilder queryBuilder;
-        if (StrUtil.isNotBlank(query.getKey())) {
-            queryBuilder = QueryBuilders.matchQuery("name", query.getKey());// 关键字非空则原始查询按照关键字匹配
+        if (StrUtil.isNotBlank(key)) {
+            queryBuilder = QueryBuilders.matchQuery("name", key);// 关键字非空则原始查询按照关键字匹配
         } else {
             queryBuilder = QueryBuilders.matchAllQuery();   // 若关键字未输入则查询所有
         }
@@ -90,48 +359,53 @@ public class SearchServiceImpl implements ISearchService {
                         ScoreFunctionBuilders.weightFactorFunction(100f)    // 算分函数：函数结果为常量100
                 )
         };
-        FunctionScoreQueryBuilder functionScoreQueryBuilder = QueryBuilders.functionScoreQuery(
+        return QueryBuilders.functionScoreQuery(
                 queryBuilder,   // 原始查询，基于此条件搜索文档会按照内部算法进行原始打分
                 filterFunctionBuilders  // 过滤条件（符合该条件的文档才会重新算分）及算分函数（得到函数算分）
         ).boostMode(CombineFunction.REPLACE);// 运算模式，这里采用将原始算分替换为函数算分，确保广告位的商品相关性算分最高
-        // 将算分查询加入到bool查询的must中
-        boolQueryBuilder.must(functionScoreQueryBuilder);
-        // 2.1.2 分类条件非空
+    }
+
+    /**
+     * 根据前端传来的查询条件选择性添加过滤条件
+     * @param query
+     * @return 字段名 -> 该字段的过滤条件，没有传的条件不包含在内
+     */
+    private Map<String, QueryBuilder> filterQueries(ItemPageQuery query) {
+        Map<String, QueryBuilder> filters = new LinkedHashMap<>(4);
+        // 分类条件非空
         if (StrUtil.isNotBlank(query.getCategory())) {
-            boolQueryBuilder.filter(QueryBuilders.termQuery("category", query.getCategory()));  // 按分类过滤但不参与算分
+            filters.put(CATEGORY, QueryBuilders.termQuery(CATEGORY, query.getCategory()));
         }
-        // 2.1.3 品牌条件非空
+        // 品牌条件非空
         if (StrUtil.isNotBlank(query.getBrand())) {
-            boolQueryBuilder.filter(QueryBuilders.termQuery("brand", query.getBrand()));    // 按品牌过滤但不参与算分
-        }
-        // 2.1.4 价格区间条件非空
-        if (query.getMaxPrice() != null) {
-            boolQueryBuilder.filter(QueryBuilders.rangeQuery("price").lte(query.getMaxPrice()));    // 价格最大值过滤
+            filters.put(BRAND, QueryBuilders.termQuery(BRAND, query.getBrand()));
         }
-        if (query.getMinPrice() != null) {
-            boolQueryBuilder.filter(QueryBuilders.rangeQuery("price").gte(query.getMinPrice()));    // 价格最小值过滤
+        // 价格区间条件非空
+        if (query.getMinPrice() != null || query.getMaxPrice() != null) {
+            filters.put(PRICE, QueryBuilders.rangeQuery(PRICE).gte(query.getMinPrice()).lte(query.getMaxPrice()));
         }
-        // 2.1.5 设置query查询条件
-        request.source().query(boolQueryBuilder);
+        return filters;
+    }
 
-        // 2.2 根据前端传来的参数设置排序规则
+    /**
+     * 根据前端传来的参数设置排序规则和分页
+     * @param request
+     * @param query
+     */
+    private void sortAndPage(SearchRequest request, ItemPageQuery query) {
+        sort(request, query);
+        // 如果前端没传，PageQuery中也给pageNo和pageSize设置了默认值，因此不用判空
+        request.source().from((query.getPageNo() - 1) * query.getPageSize()).size(query.getPageSize());
+    }
+
+    private void sort(SearchRequest request, ItemPageQuery query) {
         if (StrUtil.isNotBlank(query.getSortBy())) {
-            // 2.2.1 前端如果传了排序规则就按传的排
+            // 前端如果传了排序规则就按传的排
             request.source().sort(query.getSortBy(), query.getIsAsc() ? SortOrder.ASC : SortOrder.DESC);
         } else {
-            // 2.2.2 前端如果没传则默认按更新时间降序排
+            // 前端如果没传则默认按更新时间降序排
             request.source().sort("updateTime", SortOrder.DESC);
         }
-
-        // 2.3 根据前端传来的分页参数设置分页
-        // 如果前端没传，PageQuery中也给pageNo和pageSize设置了默认值，因此不用判空
-        request.source().from((query.getPageNo() - 1) * query.getPageSize()).size(query.getPageSize());
-
-        // 3. 发送请求
-        SearchResponse response = client.search(request, RequestOptions.DEFAULT);
-
-        // 4. 解析结果并封装后返回
-        return parseSearchResult(response, query.getPageNo());
     }
 
 
@@ -161,14 +435,30 @@ public class SearchServiceImpl implements ISearchService {
 
     /**
      * 根据关键字搜索后找出对应的过滤条件，如品牌、分类等
+     * 过滤项只与关键字有关，按规范化后的关键字缓存，查询也使用规范化后的关键字
      * @param query
      * @return
      * @throws IOException
      */
     @Override
     public Map searchItemFilters(ItemPageQuery query) throws IOException {
+        normalizeQuery(query);
+        String key = CACHE_SEARCH_FILTERS_KEY + query.getKey();
+        Map cached = (Map) nearCache.get(key);
+        if (cached != null) {
+            cacheMetrics.localHit(key);
+            return cached;
+        }
+        cacheMetrics.miss(key);
+        Map result = doSearchItemFilters(query);
+        nearCache.put(key, result);
+        return result;
+    }
+
+
+    private Map doSearchItemFilters(ItemPageQuery query) throws IOException {
         // 1. 创建request对象
-        SearchRequest request = new SearchRequest("items");
+        SearchRequest request = new SearchRequest(searchProperties.getIndex());
         // 2. 组织DSL参数
         // 2.1 query条件——关键词
         if (StrUtil.isNotBlank(query.getKey())) {
@@ -219,4 +509,51 @@ public class SearchServiceImpl implements ISearchService {
         // 5. 返回结果
         return resultMap;
     }
+
+
+    /**
+     * 规范化查询条件（关键字大小写、多余空格，分类、品牌和排序字段首尾的空格），在搜索前原地修改，
+     * 缓存key、游标指纹和发给es的DSL都使用规范化后的条件，同一个缓存key一定对应同样的查询
+     * 关键字只用于分词匹配，分词器本身就会转小写，转小写不影响搜索结果
+     * @param query
+     */
+    private void normalizeQuery(ItemPageQuery query) {
+        query.setKey(normalizeKeyword(query.getKey()));
+        query.setCategory(StrUtil.trimToNull(query.getCategory()));
+        query.setBrand(StrUtil.trimToNull(query.getBrand()));
+        query.setSortBy(StrUtil.trimToNull(query.getSortBy()));
+    }
+
+    /**
+     * 规范化后的查询条件作为缓存key，语义相同的查询（包括不参与排序的升降序）得到同一个key
+     * @param query 已经规范化的查询条件
+     * @return
+     */
+    private String normalize(ItemPageQuery query) {
+        return normalizeConditions(query) + "&p=" + query.getPageNo() + "," + query.getPageSize();
+    }
+
+    /**
+     * 除分页以外的查询条件
+     * @param query 已经规范化的查询条件
+     */
+    private String normalizeConditions(ItemPageQuery query) {
+        boolean sorted = query.getSortBy() != null;
+        return "k=" + query.getKey()
+                + "&c=" + StrUtil.nullToEmpty(query.getCategory())
+                + "&b=" + StrUtil.nullToEmpty(query.getBrand())
+                + "&min=" + StrUtil.toStringOrNull(query.getMinPrice())
+                + "&max=" + StrUtil.toStringOrNull(query.getMaxPrice())
+                + "&s=" + (sorted ? query.getSortBy() + (query.getIsAsc() ? ":asc" : ":desc") : "");
+    }
+
+    private String normalizeKeyword(String keyword) {
+        return StrUtil.isBlank(keyword) ? "" : keyword.trim().replaceAll("\\s+", " ").toLowerCase();
+    }
+
+
+    static class Cursor {
+        Object[] after;
+        String pitId;
+    }
 }
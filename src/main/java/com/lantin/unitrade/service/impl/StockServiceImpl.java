@@ -0,0 +1,486 @@
+package com.lantin.unitrade.service.impl;
+
+import com.lantin.unitrade.config.StockProperties;
+import com.lantin.unitrade.domain.dto.OrderDetailDTO;
+import com.lantin.unitrade.exception.BizIllegalException;
+import com.lantin.unitrade.service.IStockService;
+import com.lantin.unitrade.utils.CollUtils;
+import com.lantin.unitrade.utils.HotKeyDetector;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.lantin.unitrade.constant.RedisConstants.*;
+
+/**
+ * redis库存服务
+ * 分片库存：商品的库存被拆到 item:stock:{itemId}:{分片号} 多个key上，每个key在不同的槽，
+ * 扣减时按用户id选择起始分片，该分片不够时依次从其他分片补足（spill-over），凑不够则全部退回
+ * 所有跨分片的操作都是单key的原子操作，不依赖跨槽的lua脚本，分片之间不会互相争用
+ * 注意：普通商品的预扣（reserve_stock.lua）和秒杀（seckill.lua）在一个脚本中同时操作多个商品的库存key和库存流水，
+ * 这些key不在同一个槽，只支持单机redis（或主从、哨兵），不支持redis cluster
+ * @Author lantin
+ * @Date 2024/8/10
+ */
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StockServiceImpl implements IStockService {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final HotKeyDetector hotKeyDetector;
+    private final StockProperties stockProperties;
+
+    // 多商品预扣库存lua脚本
+    private static final DefaultRedisScript<List> RESERVE_STOCK_SCRIPT;
+    // 单个库存key有多少扣多少的lua脚本
+    private static final DefaultRedisScript<Long> TAKE_STOCK_SCRIPT;
+    // 库存key存在时才归还的lua脚本，在管道中执行
+    private static final DefaultRedisScript<Long> RESTORE_STOCK_SCRIPT;
+    // 预扣库存脚本返回的结果码：库存缓存不存在、库存不足
+    private static final int STOCK_NOT_EXIST = 1;
+    private static final int STOCK_NOT_ENOUGH = 2;
+
+    // 利用静态代码块加载lua脚本
+    static {
+        RESERVE_STOCK_SCRIPT = new DefaultRedisScript<>();
+        RESERVE_STOCK_SCRIPT.setLocation(new ClassPathResource("reserve_stock.lua"));
+        RESERVE_STOCK_SCRIPT.setResultType(List.class);
+        TAKE_STOCK_SCRIPT = new DefaultRedisScript<>();
+        TAKE_STOCK_SCRIPT.setLocation(new ClassPathResource("take_stock.lua"));
+        TAKE_STOCK_SCRIPT.setResultType(Long.class);
+        RESTORE_STOCK_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_STOCK_SCRIPT.setLocation(new ClassPathResource("restore_stock.lua"));
+        RESTORE_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    // 商品id -> 分片数，定期从redis同步，其他节点开启或关闭分片后最多延迟一个同步周期
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+
+    @PostConstruct
+    public void init() {
+        refreshShards();
+    }
+
+
+    /**
+     * 预扣多个商品的库存，全部成功或全部不扣
+     * 普通商品用一个lua脚本原子地判断并扣减，分片商品逐个从分片中扣减，失败时退回已扣的部分
+     * @param details 商品及购买数量
+     * @param userId 用户id，分片库存按用户id选择分片
+     */
+    @Override
+    public void reserve(List<OrderDetailDTO> details, Long userId) {
+        // 同一商品出现多次时先合并，否则脚本会对同一个key分别判断库存，合计超出库存也能扣成负数
+        details = mergeByItem(details);
+        List<OrderDetailDTO> plain = new ArrayList<>(details.size());
+        List<OrderDetailDTO> sharded = new ArrayList<>();
+        for (OrderDetailDTO detail : details) {
+            (shardCounts.containsKey(detail.getItemId()) ? sharded : plain).add(detail);
+        }
+
+        // 1. 普通商品
+        if (!plain.isEmpty()) {
+            reservePlain(plain);
+        }
+
+        // 2. 分片商品
+        List<OrderDetailDTO> taken = new ArrayList<>(sharded.size());
+        for (OrderDetailDTO detail : sharded) {
+            if (!takeSharded(detail.getItemId(), detail.getNum(), userId)) {
+                // 退回本次已经扣减的所有库存
+                taken.addAll(plain);
+                release(taken, userId);
+                throw new BizIllegalException("商品" + detail.getItemId() + "库存不足");
+            }
+            taken.add(detail);
+        }
+    }
+
+
+    /**
+     * 归还预扣的库存，分片商品归还到用户对应的分片，分片之间的不均衡由rebalance修正
+     * 同时记录一笔正的流水，抵消预扣时记录的流水
+     * @param details
+     * @param userId
+     */
+    @Override
+    public void release(List<OrderDetailDTO> details, Long userId) {
+        if (CollUtils.isEmpty(details)) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (OrderDetailDTO detail : details) {
+                Integer shards = shardCounts.get(detail.getItemId());
+                String key = shards == null
+                        ? ITEM_STOCK_KEY + detail.getItemId()
+                        : shardKey(detail.getItemId(), startShard(userId, shards));
+                connection.incrBy(key.getBytes(StandardCharsets.UTF_8), detail.getNum());
+                connection.hIncrBy(ITEM_STOCK_JOURNAL_KEY.getBytes(StandardCharsets.UTF_8),
+                        detail.getItemId().toString().getBytes(StandardCharsets.UTF_8), detail.getNum());
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * 恢复redis库存，所有商品在一个管道中完成
+     * 分片商品恢复到第一个分片，分片之间的不均衡由rebalance修正
+     * @param details
+     */
+    @Override
+    public void restore(List<OrderDetailDTO> details) {
+        if (CollUtils.isEmpty(details)) {
+            return;
+        }
+        byte[] script = RESTORE_STOCK_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (OrderDetailDTO detail : details) {
+                String key = shardCounts.containsKey(detail.getItemId())
+                        ? shardKey(detail.getItemId(), 0)
+                        : ITEM_STOCK_KEY + detail.getItemId();
+                connection.eval(script, ReturnType.INTEGER, 1,
+                        key.getBytes(StandardCharsets.UTF_8),
+                        detail.getNum().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+
+    @Override
+    public List<String> stockKeys(Long itemId, Long userId) {
+        Integer shards = shardCounts.get(itemId);
+        if (shards == null) {
+            return CollUtils.singletonList(ITEM_STOCK_KEY + itemId);
+        }
+        int start = startShard(userId, shards);
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(shardKey(itemId, (start + i) % shards));
+        }
+        return keys;
+    }
+
+
+    @Override
+    public long getStock(Long itemId) {
+        Integer shards = shardCounts.get(itemId);
+        if (shards == null) {
+            String stock = stringRedisTemplate.opsForValue().get(ITEM_STOCK_KEY + itemId);
+            return stock == null ? 0 : Long.parseLong(stock);
+        }
+        long total = 0;
+        for (long value : shardValues(itemId, shards)) {
+            total += value;
+        }
+        return total;
+    }
+
+
+    @Override
+    public Map<Long, Long> getStocks(Collection<Long> itemIds) {
+        // 分片商品展开成所有分片的key，用管道一次查完
+        List<Long> owners = new ArrayList<>(itemIds.size());
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long itemId : itemIds) {
+                Integer shards = shardCounts.get(itemId);
+                if (shards == null) {
+                    owners.add(itemId);
+                    connection.get((ITEM_STOCK_KEY + itemId).getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+                for (int i = 0; i < shards; i++) {
+                    owners.add(itemId);
+                    connection.get(shardKey(itemId, i).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+        Map<Long, Long> stocks = new LinkedHashMap<>(itemIds.size());
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) != null) {
+                stocks.merge(owners.get(i), Long.parseLong(results.get(i).toString()), Long::sum);
+            }
+        }
+        return stocks;
+    }
+
+
+    /**
+     * 开启库存分片
+     * 主key的库存被原子地取出并置为0（而不是删除），防止缓存预热时又用数据库的库存把主key写回来
+     * @param itemId
+     * @param shards 分片数
+     */
+    @Override
+    public void enableSharding(Long itemId, int shards) {
+        if (shards < 2) {
+            throw new BizIllegalException("分片数至少为2");
+        }
+        RLock lock = redissonClient.getLock(LOCK_STOCK_KEY + itemId);
+        if (!lock.tryLock()) {
+            throw new BizIllegalException("该商品的库存正在调整，请稍后重试");
+        }
+        try {
+            if (stringRedisTemplate.opsForHash().hasKey(ITEM_STOCK_SHARDS_KEY, itemId.toString())) {
+                throw new BizIllegalException("该商品已经开启了库存分片");
+            }
+            String stock = stringRedisTemplate.opsForValue().getAndSet(ITEM_STOCK_KEY + itemId, "0");
+            long total = stock == null ? 0 : Long.parseLong(stock);
+            // 平均分配，余数分给前几个分片
+            for (int i = 0; i < shards; i++) {
+                long value = total / shards + (i < total % shards ? 1 : 0);
+                stringRedisTemplate.opsForValue().set(shardKey(itemId, i), String.valueOf(value));
+            }
+            stringRedisTemplate.opsForHash().put(ITEM_STOCK_SHARDS_KEY, itemId.toString(), String.valueOf(shards));
+            shardCounts.put(itemId, shards);
+            log.info("商品{}开启库存分片，分片数：{}，库存：{}", itemId, shards, total);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 关闭库存分片
+     * 先从注册表中移除，新的扣减都走主key，再把各分片剩余的库存取出来加回主key
+     * @param itemId
+     */
+    @Override
+    public void disableSharding(Long itemId) {
+        RLock lock = redissonClient.getLock(LOCK_STOCK_KEY + itemId);
+        if (!lock.tryLock()) {
+            throw new BizIllegalException("该商品的库存正在调整，请稍后重试");
+        }
+        try {
+            Object shardsValue = stringRedisTemplate.opsForHash().get(ITEM_STOCK_SHARDS_KEY, itemId.toString());
+            if (shardsValue == null) {
+                return;
+            }
+            int shards = Integer.parseInt(shardsValue.toString());
+            stringRedisTemplate.opsForHash().delete(ITEM_STOCK_SHARDS_KEY, itemId.toString());
+            shardCounts.remove(itemId);
+            long total = 0;
+            for (int i = 0; i < shards; i++) {
+                String value = stringRedisTemplate.opsForValue().getAndSet(shardKey(itemId, i), "0");
+                total += value == null ? 0 : Long.parseLong(value);
+                stringRedisTemplate.delete(shardKey(itemId, i));
+            }
+            stringRedisTemplate.opsForValue().increment(ITEM_STOCK_KEY + itemId, total);
+            log.info("商品{}关闭库存分片，合并库存：{}", itemId, total);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 定期把各分片的库存拉平
+     * 从多的分片中取出多余的部分（单key原子操作），再加到少的分片上，总库存不变
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${unitrade.stock.rebalance-interval-ms:5000}")
+    public void rebalance() {
+        refreshShards();
+        shardCounts.forEach((itemId, shards) -> {
+            RLock lock = redissonClient.getLock(LOCK_STOCK_KEY + itemId);
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                rebalance(itemId, shards);
+            } catch (Exception e) {
+                log.error("商品{}的分片库存平衡失败", itemId, e);
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+
+    private void rebalance(Long itemId, int shards) {
+        List<Long> values = shardValues(itemId, shards);
+        long total = 0, max = Long.MIN_VALUE, min = Long.MAX_VALUE;
+        for (long value : values) {
+            total += value;
+            max = Math.max(max, value);
+            min = Math.min(min, value);
+        }
+        if (max - min <= stockProperties.getRebalanceThreshold()) {
+            return;
+        }
+        long target = total / shards;
+        // 1. 从多的分片中取出多余的库存，期间分片可能被扣减，以实际取出的数量为准
+        long pool = 0;
+        for (int i = 0; i < shards; i++) {
+            if (values.get(i) > target) {
+                pool += take(shardKey(itemId, i), values.get(i) - target);
+            }
+        }
+        // 2. 补给少的分片，剩余的放到第一个分片
+        Map<String, Long> adds = new LinkedHashMap<>();
+        for (int i = 0; i < shards && pool > 0; i++) {
+            long deficit = target - values.get(i);
+            if (deficit > 0) {
+                long add = Math.min(deficit, pool);
+                adds.put(shardKey(itemId, i), add);
+                pool -= add;
+            }
+        }
+        if (pool > 0) {
+            adds.merge(shardKey(itemId, 0), pool, Long::sum);
+        }
+        adds.forEach((key, add) -> stringRedisTemplate.opsForValue().increment(key, add));
+        log.debug("商品{}的分片库存已平衡：{}", itemId, adds);
+    }
+
+
+    /**
+     * 按商品id合并购买数量，保持商品第一次出现的顺序
+     * @param details
+     * @return
+     */
+    private static List<OrderDetailDTO> mergeByItem(List<OrderDetailDTO> details) {
+        Map<Long, Integer> nums = new LinkedHashMap<>(details.size());
+        for (OrderDetailDTO detail : details) {
+            nums.merge(detail.getItemId(), detail.getNum(), Integer::sum);
+        }
+        if (nums.size() == details.size()) {
+            return details;
+        }
+        List<OrderDetailDTO> merged = new ArrayList<>(nums.size());
+        nums.forEach((itemId, num) -> merged.add(new OrderDetailDTO().setItemId(itemId).setNum(num)));
+        return merged;
+    }
+
+
+    /**
+     * 用一个lua脚本原子地判断并扣减多个普通商品的库存
+     * @param details
+     */
+    private void reservePlain(List<OrderDetailDTO> details) {
+        int n = details.size();
+        List<String> keys = new ArrayList<>(n + 1);
+        // 前n个参数是购买数量，后n个是商品id
+        Object[] args = new Object[n * 2];
+        for (int i = 0; i < n; i++) {
+            OrderDetailDTO detail = details.get(i);
+            String stockKey = ITEM_STOCK_KEY + detail.getItemId();
+            hotKeyDetector.record(stockKey);
+            keys.add(stockKey);
+            args[i] = detail.getNum().toString();
+            args[n + i] = detail.getItemId().toString();
+        }
+        keys.add(ITEM_STOCK_JOURNAL_KEY);
+        List<Long> codes = stringRedisTemplate.execute(RESERVE_STOCK_SCRIPT, keys, args);
+        if (codes == null || codes.size() != n) {
+            throw new BizIllegalException("预扣库存失败");
+        }
+
+        // 组装每个商品的失败原因
+        List<String> reasons = new ArrayList<>();
+        for (int i = 0; i < codes.size(); i++) {
+            Long itemId = details.get(i).getItemId();
+            int code = codes.get(i).intValue();
+            if (code == STOCK_NOT_EXIST) {
+                log.error("缓存中商品库存不存在！商品id：{}", itemId);
+                reasons.add("商品" + itemId + "不存在");
+            } else if (code == STOCK_NOT_ENOUGH) {
+                reasons.add("商品" + itemId + "库存不足");
+            }
+        }
+        if (!reasons.isEmpty()) {
+            throw new BizIllegalException(String.join("，", reasons));
+        }
+    }
+
+
+    /**
+     * 从分片中扣减库存，从用户对应的分片开始，不够时依次从后面的分片补足
+     * @return 凑够了返回true，否则退回已扣的部分并返回false
+     */
+    private boolean takeSharded(Long itemId, int num, Long userId) {
+        int shards = shardCounts.get(itemId);
+        int start = startShard(userId, shards);
+        Map<String, Long> taken = new LinkedHashMap<>();
+        long remaining = num;
+        for (int i = 0; i < shards && remaining > 0; i++) {
+            String key = shardKey(itemId, (start + i) % shards);
+            hotKeyDetector.record(key);
+            long t = take(key, remaining);
+            if (t > 0) {
+                taken.put(key, t);
+                remaining -= t;
+            }
+        }
+        if (remaining > 0) {
+            taken.forEach((key, t) -> stringRedisTemplate.opsForValue().increment(key, t));
+            return false;
+        }
+        // 分片在不同的槽上，流水不能和扣减放在同一个脚本里，凑够之后单独记录
+        stringRedisTemplate.opsForHash().increment(ITEM_STOCK_JOURNAL_KEY, itemId.toString(), -num);
+        return true;
+    }
+
+    private long take(String key, long num) {
+        Long taken = stringRedisTemplate.execute(TAKE_STOCK_SCRIPT, CollUtils.singletonList(key), String.valueOf(num));
+        return taken == null ? 0 : taken;
+    }
+
+    private List<Long> shardValues(Long itemId, int shards) {
+        // 分片在不同的槽上，用管道逐个get而不是mget
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                connection.get(shardKey(itemId, i).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        List<Long> values = new ArrayList<>(shards);
+        for (Object result : results) {
+            values.add(result == null ? 0 : Long.parseLong(result.toString()));
+        }
+        return values;
+    }
+
+    private void refreshShards() {
+        try {
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(ITEM_STOCK_SHARDS_KEY);
+            Map<Long, Integer> latest = new ConcurrentHashMap<>(entries.size());
+            entries.forEach((k, v) -> latest.put(Long.valueOf(k.toString()), Integer.valueOf(v.toString())));
+            shardCounts.keySet().retainAll(latest.keySet());
+            shardCounts.putAll(latest);
+        } catch (Exception e) {
+            log.error("同步库存分片信息失败", e);
+        }
+    }
+
+    private static int startShard(Long userId, int shards) {
+        return Math.floorMod(userId == null ? 0 : userId.hashCode(), shards);
+    }
+
+    private static String shardKey(Long itemId, int shard) {
+        return ITEM_STOCK_KEY + itemId + ":" + shard;
+    }
+}
@@ -0,0 +1,279 @@
+package com.lantin.unitrade.service.impl;
+
+import cn.hutool.core.util.IdUtil;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.lantin.unitrade.config.StockProperties;
+import com.lantin.unitrade.domain.po.Item;
+import com.lantin.unitrade.domain.po.StockFlushLog;
+import com.lantin.unitrade.mapper.StockFlushLogMapper;
+import com.lantin.unitrade.service.IItemService;
+import com.lantin.unitrade.service.IStockService;
+import com.lantin.unitrade.service.IStockWriteBackService;
+import com.lantin.unitrade.utils.CollUtils;
+import com.lantin.unitrade.utils.ExceptionUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.lantin.unitrade.constant.RedisConstants.*;
+
+/**
+ * 库存写回服务
+ * 库存流水 item:stock:journal 是一个hash，预扣、归还redis库存时在同一个脚本或管道中累加对应商品的变化量
+ * 写回时先把流水整体改名为processing批次并写入批次id，新的流水写到新的hash中，互不影响，
+ * 批次写回数据库后再删除，写回过程中宕机则下次先重放这个批次，数据库中的写回记录保证同一批次只写回一次
+ * 整批写回失败时改为逐个商品写回，确定性失败的商品移到parked中等待人工处理，其余正常写回，不会让一个坏商品卡住所有写回
+ * @Author lantin
+ * @Date 2024/8/12
+ */
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StockWriteBackServiceImpl implements IStockWriteBackService {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final IItemService itemService;
+    private final IStockService stockService;
+    private final StockProperties stockProperties;
+    private final MeterRegistry meterRegistry;
+    private final StockFlushLogMapper stockFlushLogMapper;
+
+    // 切换库存流水批次的lua脚本
+    private static final DefaultRedisScript<Long> ROTATE_SCRIPT;
+    // 批次中保存批次id的字段
+    private static final String FLUSH_ID_FIELD = "_flushId";
+    // 批次中的标记字段，存在说明批次已经改为逐个商品写回，重放时不能再整批写回，否则已经单独写回的商品会重复写回
+    private static final String SPLIT_FIELD = "_split";
+    // 每次最多删除的写回记录数，分批删除避免长时间锁表
+    private static final int FLUSH_LOG_CLEAN_BATCH = 1000;
+
+    static {
+        ROTATE_SCRIPT = new DefaultRedisScript<>();
+        ROTATE_SCRIPT.setLocation(new ClassPathResource("stock_journal_rotate.lua"));
+        ROTATE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 上一次对账不一致的商品，连续两次不一致且差值相同才报告，排除对账过程中正在下单、写回造成的瞬时差异
+    private volatile Map<Long, Long> lastDiffs = Collections.emptyMap();
+
+
+    /**
+     * 定期写回，多个节点同时触发时只有一个节点执行
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${unitrade.stock.flush-interval-ms:1000}")
+    public void flush() {
+        RLock lock = redissonClient.getLock(LOCK_STOCK_FLUSH_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 1. 上一个批次没有处理完，先重放
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(ITEM_STOCK_JOURNAL_PROCESSING_KEY))) {
+                log.warn("发现未完成的库存流水批次，重新写回");
+                apply();
+            }
+            // 2. 切换当前的流水，切换成功则写回
+            Long rotated = stringRedisTemplate.execute(ROTATE_SCRIPT,
+                    Arrays.asList(ITEM_STOCK_JOURNAL_KEY, ITEM_STOCK_JOURNAL_PROCESSING_KEY), IdUtil.fastSimpleUUID());
+            if (rotated != null && rotated == 1) {
+                apply();
+            }
+        } catch (Exception e) {
+            log.error("库存流水写回失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * 把processing批次写回数据库后删除
+     */
+    private void apply() {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(ITEM_STOCK_JOURNAL_PROCESSING_KEY);
+        Object flushId = entries.remove(FLUSH_ID_FIELD);
+        boolean split = entries.remove(SPLIT_FIELD) != null;
+        Map<Long, Long> deltas = new HashMap<>(entries.size());
+        entries.forEach((itemId, delta) -> {
+            long d = Long.parseLong(delta.toString());
+            if (d != 0) {
+                deltas.put(Long.valueOf(itemId.toString()), d);
+            }
+        });
+        if (flushId != null && !deltas.isEmpty()) {
+            long start = System.currentTimeMillis();
+            if (split) {
+                applyOneByOne(flushId.toString(), deltas);
+            } else {
+                try {
+                    if (itemService.applyStockDeltas(flushId.toString(), deltas)) {
+                        log.debug("库存流水批次{}写回完成，共{}个商品，耗时{}ms", flushId, deltas.size(), System.currentTimeMillis() - start);
+                    } else {
+                        log.warn("库存流水批次{}已经写回过，跳过", flushId);
+                    }
+                } catch (Exception e) {
+                    if (ExceptionUtils.isTransient(e)) {
+                        // 数据库暂时不可用，保留批次下次重放
+                        throw e;
+                    }
+                    log.warn("库存流水批次{}整批写回失败，改为逐个商品写回", flushId, e);
+                    stringRedisTemplate.opsForHash().put(ITEM_STOCK_JOURNAL_PROCESSING_KEY, SPLIT_FIELD, "1");
+                    applyOneByOne(flushId.toString(), deltas);
+                }
+            }
+        }
+        stringRedisTemplate.delete(ITEM_STOCK_JOURNAL_PROCESSING_KEY);
+    }
+
+
+    /**
+     * 逐个商品写回，每个商品用 批次id:商品id 作为写回记录，重放时已经写回的商品会跳过
+     * 临时性错误直接抛出，保留批次下次重放；确定性失败的商品移到parked中并告警，其余商品继续写回
+     * @param flushId
+     * @param deltas
+     */
+    private void applyOneByOne(String flushId, Map<Long, Long> deltas) {
+        int parked = 0;
+        for (Map.Entry<Long, Long> entry : deltas.entrySet()) {
+            Long itemId = entry.getKey();
+            try {
+                itemService.applyStockDeltas(flushId + ":" + itemId, Collections.singletonMap(itemId, entry.getValue()));
+            } catch (Exception e) {
+                if (ExceptionUtils.isTransient(e)) {
+                    throw e;
+                }
+                log.error("商品{}的库存流水无法写回数据库，变化量{}，已移到{}等待人工处理",
+                        itemId, entry.getValue(), ITEM_STOCK_JOURNAL_PARKED_KEY, e);
+                // 移到parked后从批次中删掉，批次重放时不会重复移动
+                stringRedisTemplate.opsForHash().increment(ITEM_STOCK_JOURNAL_PARKED_KEY, itemId.toString(), entry.getValue());
+                stringRedisTemplate.opsForHash().delete(ITEM_STOCK_JOURNAL_PROCESSING_KEY, itemId.toString());
+                parked++;
+            }
+        }
+        if (parked > 0) {
+            parkedCounter().increment(parked);
+        }
+    }
+
+    private Counter parkedCounter() {
+        return Counter.builder("unitrade.stock.journal.parked")
+                .description("无法写回数据库、等待人工处理的库存流水商品数")
+                .register(meterRegistry);
+    }
+
+
+    /**
+     * 定期删除过期的写回记录
+     * 写回记录只用于重放processing批次时去重，有批次正在等待重放时跳过本次清理，避免删掉它依赖的记录
+     */
+    @Override
+    @Scheduled(cron = "${unitrade.stock.flush-log-clean-cron:0 30 3 * * ?}")
+    public void cleanFlushLog() {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(ITEM_STOCK_JOURNAL_PROCESSING_KEY))) {
+            log.info("有未完成的库存流水批次，跳过本次写回记录清理");
+            return;
+        }
+        LocalDateTime before = LocalDateTime.now().minus(stockProperties.getFlushLogRetention());
+        int total = 0;
+        int deleted;
+        do {
+            deleted = stockFlushLogMapper.delete(Wrappers.<StockFlushLog>lambdaQuery()
+                    .lt(StockFlushLog::getCreateTime, before)
+                    .last("limit " + FLUSH_LOG_CLEAN_BATCH));
+            total += deleted;
+        } while (deleted == FLUSH_LOG_CLEAN_BATCH);
+        if (total > 0) {
+            log.info("删除了{}条{}之前的库存写回记录", total, before);
+        }
+    }
+
+
+    /**
+     * 定期对账
+     * 预期的redis库存 = 数据库库存 + 还没有写回的流水（当前流水 + processing批次 + parked）
+     */
+    @Override
+    @Scheduled(cron = "${unitrade.stock.reconcile-cron:0 */5 * * * ?}")
+    public Map<Long, Long> reconcile() {
+        Map<Long, Long> diffs = new HashMap<>();
+        int pageSize = stockProperties.getReconcilePageSize();
+        // 按id游标分页
+        Long lastId = 0L;
+        while (true) {
+            List<Item> items = itemService.lambdaQuery()
+                    .select(Item::getId, Item::getStock)
+                    .gt(Item::getId, lastId)
+                    .orderByAsc(Item::getId)
+                    .last("limit " + pageSize)
+                    .list();
+            if (CollUtils.isEmpty(items)) {
+                break;
+            }
+            lastId = items.get(items.size() - 1).getId();
+
+            List<Long> ids = items.stream().map(Item::getId).collect(Collectors.toList());
+            Map<Long, Long> redisStocks = stockService.getStocks(ids);
+            Map<Long, Long> pending = pendingDeltas(ids);
+            for (Item item : items) {
+                Long redisStock = redisStocks.get(item.getId());
+                if (redisStock == null) {
+                    // redis中没有库存，还没有预热
+                    continue;
+                }
+                long expected = item.getStock() + pending.getOrDefault(item.getId(), 0L);
+                if (redisStock != expected) {
+                    diffs.put(item.getId(), redisStock - expected);
+                }
+            }
+        }
+
+        Map<Long, Long> previous = lastDiffs;
+        lastDiffs = diffs;
+        Map<Long, Long> confirmed = new TreeMap<>();
+        diffs.forEach((itemId, diff) -> {
+            if (diff.equals(previous.get(itemId))) {
+                confirmed.put(itemId, diff);
+            }
+        });
+        if (!confirmed.isEmpty()) {
+            log.warn("redis库存与数据库库存不一致，商品id -> redis多出的库存：{}", confirmed);
+        }
+        return confirmed;
+    }
+
+
+    /**
+     * 还没有写回数据库的流水，当前流水、processing批次和parked之和
+     */
+    private Map<Long, Long> pendingDeltas(List<Long> ids) {
+        List<Object> fields = ids.stream().map(Object::toString).collect(Collectors.toList());
+        List<Object> journal = stringRedisTemplate.opsForHash().multiGet(ITEM_STOCK_JOURNAL_KEY, fields);
+        List<Object> processing = stringRedisTemplate.opsForHash().multiGet(ITEM_STOCK_JOURNAL_PROCESSING_KEY, fields);
+        List<Object> parked = stringRedisTemplate.opsForHash().multiGet(ITEM_STOCK_JOURNAL_PARKED_KEY, fields);
+        Map<Long, Long> pending = new HashMap<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            long delta = (journal.get(i) == null ? 0 : Long.parseLong(journal.get(i).toString()))
+                    + (processing.get(i) == null ? 0 : Long.parseLong(processing.get(i).toString()))
+                    + (parked.get(i) == null ? 0 : Long.parseLong(parked.get(i).toString()));
+            if (delta != 0) {
+                pending.put(ids.get(i), delta);
+            }
+        }
+        return pending;
+    }
+}
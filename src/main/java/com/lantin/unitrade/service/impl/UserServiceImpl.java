@@ -16,6 +16,7 @@ import com.lantin.unitrade.enums.UserStatus;
 import com.lantin.unitrade.exception.BizIllegalException;
 import com.lantin.unitrade.mapper.UserMapper;
 import com.lantin.unitrade.service.IUserService;
+import com.lantin.unitrade.utils.IdBloomFilter;
 import com.lantin.unitrade.utils.PasswordEncoder;
 import com.lantin.unitrade.utils.RegexUtils;
 import com.lantin.unitrade.utils.UserHolder;
@@ -45,6 +46,7 @@ import static com.lantin.unitrade.constant.SystemConstants.PASSWORD_SALT;
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final IdBloomFilter idBloomFilter;
 
     /**
      * 发送验证码
@@ -153,6 +155,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
         // 2. 保存用户到数据库
         save(user);
+        idBloomFilter.add(BLOOM_USER, user.getId());
         return user;
     }
 
@@ -247,6 +250,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
      */
     @Override
     public Result getUserInfo(Long userId) {
+        // 布隆过滤器判断一定不存在的用户直接返回
+        if (!idBloomFilter.mightContain(BLOOM_USER, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         User user = getById(userId);
         if (user == null) {
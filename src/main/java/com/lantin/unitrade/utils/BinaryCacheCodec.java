@@ -0,0 +1,135 @@
+package com.lantin.unitrade.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * 紧凑的二进制编解码器（基于Smile，即二进制的json）
+ * 格式：魔数(1字节) + 版本号(1字节) + 类型(1字节) + 内容
+ *  - 普通值：内容就是Smile编码的对象
+ *  - RedisData：内容是8字节的逻辑过期时间（毫秒） + 4字节的重建耗时（毫秒，版本2新增） + Smile编码的data，
+ *    解码时data直接还原为目标类型，只解析一次
+ * 魔数不可能是json文本的首字节，因此可以和json格式共存，用于格式迁移
+ * @Author lantin
+ * @Date 2024/8/6
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    // 魔数，json文本不会以该字节开头
+    public static final byte MAGIC = (byte) 0xCB;
+    // 当前的格式版本，格式有不兼容的变化时递增
+    public static final byte VERSION = 2;
+    // 版本1的RedisData没有重建耗时字段，仍然可以读取
+    private static final byte VERSION_1 = 1;
+
+    private static final byte KIND_VALUE = 0;
+    private static final byte KIND_ENVELOPE = 1;
+    private static final int HEADER_LENGTH = 3;
+    private static final int EXPIRE_TIME_LENGTH = 8;
+    private static final int DELTA_LENGTH = 4;
+
+    private final ObjectMapper mapper;
+
+    public BinaryCacheCodec() {
+        // 头部由我们自己写，不需要Smile自带的头部
+        SmileFactory factory = new SmileFactory()
+                .disable(SmileGenerator.Feature.WRITE_HEADER)
+                .disable(SmileParser.Feature.REQUIRE_HEADER);
+        mapper = new ObjectMapper(factory)
+                .registerModule(new JavaTimeModule())
+                // 不写null字段，进一步减小体积
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                // 实体类新增或删除字段后依然能读旧数据
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    /**
+     * 判断字节是否是本编解码器写入的格式
+     * @param bytes
+     * @return
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            if (value instanceof RedisData) {
+                RedisData redisData = (RedisData) value;
+                byte[] data = mapper.writeValueAsBytes(redisData.getData());
+                long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+                return ByteBuffer.allocate(HEADER_LENGTH + EXPIRE_TIME_LENGTH + DELTA_LENGTH + data.length)
+                        .put(MAGIC).put(VERSION).put(KIND_ENVELOPE)
+                        .putLong(redisData.getExpireTime().toInstant(ZoneOffset.UTC).toEpochMilli())
+                        .putInt((int) Math.min(delta, Integer.MAX_VALUE))
+                        .put(data)
+                        .array();
+            }
+            byte[] data = mapper.writeValueAsBytes(value);
+            return ByteBuffer.allocate(HEADER_LENGTH + data.length)
+                    .put(MAGIC).put(VERSION).put(KIND_VALUE)
+                    .put(data)
+                    .array();
+        } catch (IOException e) {
+            throw new RuntimeException("缓存值二进制编码失败", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return read(bytes, KIND_VALUE, HEADER_LENGTH, mapper.constructType(type));
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        return read(bytes, KIND_VALUE, HEADER_LENGTH,
+                mapper.getTypeFactory().constructCollectionType(List.class, elementType));
+    }
+
+    @Override
+    public RedisData decodeEnvelope(byte[] bytes, Class<?> dataType) {
+        boolean hasDelta = bytes.length > 1 && bytes[1] != VERSION_1;
+        int offset = HEADER_LENGTH + EXPIRE_TIME_LENGTH + (hasDelta ? DELTA_LENGTH : 0);
+        Object data = read(bytes, KIND_ENVELOPE, offset, mapper.constructType(dataType));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, HEADER_LENGTH, offset - HEADER_LENGTH);
+        long expireMillis = buffer.getLong();
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofEpochSecond(
+                Math.floorDiv(expireMillis, 1000L), (int) Math.floorMod(expireMillis, 1000L) * 1_000_000, ZoneOffset.UTC));
+        if (hasDelta) {
+            redisData.setDelta((long) buffer.getInt());
+        }
+        redisData.setData(data);
+        return redisData;
+    }
+
+    private <T> T read(byte[] bytes, byte kind, int offset, JavaType javaType) {
+        if (!isBinary(bytes)) {
+            throw new IllegalArgumentException("不是二进制格式的缓存值");
+        }
+        if (bytes[1] != VERSION && bytes[1] != VERSION_1) {
+            throw new IllegalArgumentException("不支持的缓存格式版本：" + bytes[1]);
+        }
+        if (bytes[2] != kind) {
+            throw new IllegalArgumentException("缓存值类型不匹配：" + bytes[2]);
+        }
+        try {
+            return mapper.readValue(bytes, offset, bytes.length - offset, javaType);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存值二进制解码失败", e);
+        }
+    }
+}
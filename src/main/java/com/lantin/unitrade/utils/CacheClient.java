@@ -1,69 +1,175 @@
 package com.lantin.unitrade.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.lantin.unitrade.config.CacheProperties;
 import com.lantin.unitrade.constant.RedisConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 /**
  * 缓存工具封装类
+ * 缓存值的序列化格式由CacheCodec决定（json或二进制），因此这里直接读写redis中的字节
  */
 
 @Slf4j
 @Component
 public class CacheClient {
 
+    // 缓存空值时写入的内容，用于解决缓存穿透
+    private static final byte[] NULL_VALUE = new byte[0];
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private NearCache nearCache;
+    @Resource
+    private CacheCodec cacheCodec;
+    @Resource
+    private SingleFlight singleFlight;
+    @Resource
+    private CacheProperties cacheProperties;
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheMetrics cacheMetrics;
 
 
     /**
-     * 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
+     * 将任意Java对象序列化后存储在string类型的key中，并且可以设置TTL过期时间
      * @param key
      * @param value 要存储的Java对象
      * @param time
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, cacheCodec.encode(value), time, unit);
+        // 缓存被重写，其他节点的本地副本需要失效
+        nearCache.invalidate(key);
     }
 
 
     /**
-     * 将任意Java对象序列化为json并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
+     * 将任意Java对象序列化后存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
      * @param key
      * @param value 要存储的Java对象
      * @param time
      * @param unit
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+
+    /**
+     * 将任意Java对象序列化后存储在string类型的key中，并且可以设置逻辑过期时间，同时记录本次重建的耗时
+     * @param key
+     * @param value 要存储的Java对象
+     * @param time
+     * @param unit
+     * @param delta 重建耗时（毫秒），用于提前刷新
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long delta) {
         // 封装成RedisData
         RedisData redisData = new RedisData();
         redisData.setData(value);
+        redisData.setDelta(delta);
         // 设置逻辑过期，当前时间加上逻辑过期时间
         redisData.setExpireTime(LocalDateTime.now().plus(Duration.of(time, unit.toChronoUnit())));
 
         // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));  // 逻辑过期本质是永久有效，因此不能设置TTL过期时间
+        setRaw(key, cacheCodec.encode(redisData), null, null);  // 逻辑过期本质是永久有效，因此不能设置TTL过期时间
+        nearCache.invalidate(key);
     }
 
 
+    /**
+     * 批量写入逻辑过期的缓存，用管道一次网络往返写完
+     * @param values key -> 要存储的Java对象
+     * @param time
+     * @param unit
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit) {
+        setBatchWithLogicalExpire(values, time, unit, null);
+    }
+
+
+    /**
+     * 批量写入逻辑过期的缓存，同时记录重建耗时
+     * @param values key -> 要存储的Java对象
+     * @param time
+     * @param unit
+     * @param delta 重建耗时（毫秒），用于提前刷新
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit, Long delta) {
+        if (CollUtils.isEmpty(values)) {
+            return;
+        }
+        LocalDateTime expireTime = LocalDateTime.now().plus(Duration.of(time, unit.toChronoUnit()));
+        // 先在管道外完成编码，管道内只做写入
+        Map<byte[], byte[]> raw = new LinkedHashMap<>(values.size());
+        values.forEach((key, value) -> {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(expireTime);
+            redisData.setDelta(delta);
+            raw.put(rawKey(key), cacheCodec.encode(redisData));
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            raw.forEach(connection::set);
+            return null;
+        });
+        nearCache.invalidateAll(values.keySet());
+    }
+
+
+    /**
+     * 查询缓存并反序列化为指定元素类型的集合
+     * @param key
+     * @param elementType
+     * @return 未命中时返回null
+     * @param <T>
+     */
+    public <T> List<T> getList(String key, Class<T> elementType) {
+        byte[] bytes = getRaw(key);
+        if (bytes == null || bytes.length == 0) {
+            cacheMetrics.miss(key);
+            return null;
+        }
+        cacheMetrics.hit(key);
+        long start = System.nanoTime();
+        List<T> list = cacheCodec.decodeList(bytes, elementType);
+        cacheMetrics.decodeDuration(key, start);
+        return list;
+    }
+
+
+    /**
+     * 删除缓存，同时删除所有节点的本地缓存副本
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        nearCache.invalidate(key);
+    }
 
 
     /**
@@ -88,28 +194,84 @@ public class CacheClient {
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
             Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 0. 热点key可能已经被提升到本地
+        Object local = nearCache.get(key);
+        if (type.isInstance(local)) {
+            cacheMetrics.localHit(key);
+            return type.cast(local);
+        }
+
         // 1. 从redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
         // 2. 判断是否存在
-        if (StrUtil.isNotBlank(json)) { // redis中查出空值""这里也是false
+        if (bytes != null && bytes.length > 0) {
             // 3. 存在，反序列化为指定类型后返回
-            return JSONUtil.toBean(json, type); // R的类型就是type
+            cacheMetrics.hit(key);
+            long start = System.nanoTime();
+            R r = cacheCodec.decode(bytes, type); // R的类型就是type
+            cacheMetrics.decodeDuration(key, start);
+            if (hotKeyDetector.isHot(key)) {
+                nearCache.promote(key, r);
+            }
+            return r;
         }
 
         // 判断命中的是否是空值
-        if ("".equals(json)) {
+        if (bytes != null) {
+            cacheMetrics.nullHit(key);
             return null;
         }
 
         // 4. 不存在/未命中。
-        // 如果不是空值则根据id查询数据库
+        cacheMetrics.miss(key);
+        // 同一个key的并发未命中合并为一次加载，其余请求等待同一结果
+        return singleFlight.execute(key, () -> loadPassThrough(key, id, type, dbFallback, time, unit));
+    }
+
+
+    /**
+     * 缓存穿透方案中未命中时的加载逻辑，查询数据库并写入redis
+     * 分布式模式下先获取分布式锁，拿到锁后再检查一次redis，其他节点已经加载过就不用再查数据库
+     */
+    private <R, ID> R loadPassThrough(String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                      Long time, TimeUnit unit) {
+        CacheProperties.SingleFlight config = cacheProperties.getSingleFlight();
+        if (!Boolean.TRUE.equals(config.getDistributed())) {
+            return loadFromDb(key, id, dbFallback, time, unit);
+        }
+
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + key);
+        boolean getLock = false;
+        try {
+            getLock = lock.tryLock(config.getLockWait().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            // 无论是否拿到锁，都先看看其他节点是否已经加载完成
+            byte[] bytes = getRaw(key);
+            if (bytes != null) {
+                singleFlight.recordRemoteCoalesced();
+                return bytes.length == 0 ? null : cacheCodec.decode(bytes, type);
+            }
+            // 没拿到锁（等待超时）也直接查数据库，保证可用性
+            return loadFromDb(key, id, dbFallback, time, unit);
+        } finally {
+            if (getLock) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private <R, ID> R loadFromDb(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 根据id查询数据库
         R r = dbFallback.apply(id);
 
         // 5. 数据库中也不存在
         if (r == null) {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);    // 空值的有效期要设置的短一些
+            setRaw(key, NULL_VALUE, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);    // 空值的有效期要设置的短一些
             // 返回null
             return null;
         }
@@ -122,13 +284,6 @@ public class CacheClient {
     }
 
 
-
-
-
-    // 线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-
     /**
      * 根据指定的key查询缓存，并反序列化为指定类型，需要利用逻辑过期解决缓存击穿问题
      * 由于热点key在缓存预热时已经被加入到redis，且没有设置redis过期时间，因此理论上在缓存中一定存在
@@ -144,78 +299,271 @@ public class CacheClient {
      * @param <R>
      * @param <ID>
      */
+    @SuppressWarnings("unchecked")
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type,
                                             String lockKeyPrefix, Function<ID, R> dbFallback,
                                             Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        // 0. 先查本地缓存，命中且未逻辑过期则直接返回，省去一次redis网络往返和反序列化
+        RedisData local = (RedisData) nearCache.get(key);
+        if (local != null && LocalDateTime.now().isBefore(local.getExpireTime())) {
+            if (shouldRefreshEarly(local)) {
+                // 临近过期，提前在后台刷新
+                rebuildAsync(key, id, local.getExpireTime(), type, lockKeyPrefix, dbFallback, time, unit);
+            }
+            cacheMetrics.localHit(key);
+            return (R) local.getData();
+        }
+
         // 1. 从redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
         // 2. 判断是否命中
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             // 3. 如果未命中直接返回空
+            cacheMetrics.miss(key);
             return null;
         }
 
-        // 4. 命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 4. 命中，反序列化为RedisData，其中的data已经是目标类型
+        long start = System.nanoTime();
+        RedisData redisData = cacheCodec.decodeEnvelope(bytes, type);
+        cacheMetrics.decodeDuration(key, start);
+        R r = (R) redisData.getData();
 
         // 5. 判断是否过期
-        if (LocalDateTime.now().isBefore(expireTime)) {
-            // 5.1 未过期，直接返回对象
+        if (LocalDateTime.now().isBefore(redisData.getExpireTime())) {
+            cacheMetrics.hit(key);
+            // 5.1 未过期，放入本地缓存后直接返回，临近过期时按概率提前在后台刷新
+            nearCache.put(key, redisData);
+            if (hotKeyDetector.isHot(key)) {
+                nearCache.promote(key, redisData);
+            }
+            if (shouldRefreshEarly(redisData)) {
+                rebuildAsync(key, id, redisData.getExpireTime(), type, lockKeyPrefix, dbFallback, time, unit);
+            }
             return r;
         }
 
         // 6. 已过期，需要缓存重建
-        // 6.1 获取互斥锁
-        String lockKey = lockKeyPrefix + id;
-        // boolean getLock = tryLock(lockKey);  // 用redis setnx实现分布式锁
-        // redisson分布式锁比 redis setnx 实现的更好
-        RLock lock = redissonClient.getLock(lockKey);
-        // 尝试获取锁，如果获取不到则直接返回旧值
-        boolean getLock = lock.tryLock();   // // 无参默认失败不等待不重试
-
-
-        // 6.2 判断是否获取锁成功
-        if (getLock) {
-            // 6.3 获取成功，需要再次检测redis缓存是否过期，做DoubleCheck，如果存在则无需重建缓存
-            json = stringRedisTemplate.opsForValue().get(key);
-
-            if (StrUtil.isBlank(json)) {
-                return null;
+        cacheMetrics.stale(key);
+        rebuildAsync(key, id, redisData.getExpireTime(), type, lockKeyPrefix, dbFallback, time, unit);
+
+        // 7. 返回过期的信息
+        return r;
+    }
+
+
+    /**
+     * 批量查询逻辑过期的缓存，一次MGET查出所有key，未命中的一次性批量查询数据库后用管道写回redis
+     * 返回结果与ids的顺序一致，数据库中也不存在的id不会出现在结果中
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param lockKeyPrefix
+     * @param dbBatchFallback 根据ids批量查询数据库的逻辑，如listByIds
+     * @param idGetter 从查询结果中取出id的逻辑，用于和ids对应
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                       String lockKeyPrefix, Function<Collection<ID>, List<R>> dbBatchFallback,
+                                                       Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        if (CollUtils.isEmpty(ids)) {
+            return CollUtils.emptyList();
+        }
+        // 去重并保持原有顺序
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<ID, R> found = new HashMap<>(idList.size());
+
+        // 1. 先查本地缓存
+        List<ID> remoteIds = new ArrayList<>();
+        LocalDateTime now = LocalDateTime.now();
+        for (ID id : idList) {
+            RedisData local = (RedisData) nearCache.get(keyPrefix + id);
+            if (local != null && now.isBefore(local.getExpireTime())) {
+                cacheMetrics.localHit(keyPrefix + id);
+                found.put(id, (R) local.getData());
+                if (shouldRefreshEarly(local)) {
+                    rebuildAsync(keyPrefix + id, id, local.getExpireTime(), type, lockKeyPrefix,
+                            one -> CollUtils.getFirst(dbBatchFallback.apply(CollUtils.singletonList(one))), time, unit);
+                }
+            } else {
+                remoteIds.add(id);
             }
+        }
 
-            redisData = JSONUtil.toBean(json, RedisData.class);
-            r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-            expireTime = redisData.getExpireTime();
+        // 2. 本地未命中的一次MGET从redis查询
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            for (ID id : remoteIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<byte[]> values = multiGetRaw(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes == null || bytes.length == 0) {
+                    cacheMetrics.miss(keys.get(i));
+                    missIds.add(id);
+                    continue;
+                }
+                long start = System.nanoTime();
+                RedisData redisData = cacheCodec.decodeEnvelope(bytes, type);
+                cacheMetrics.decodeDuration(keys.get(i), start);
+                R r = (R) redisData.getData();
+                boolean fresh = LocalDateTime.now().isBefore(redisData.getExpireTime());
+                if (fresh) {
+                    cacheMetrics.hit(keys.get(i));
+                    nearCache.put(keys.get(i), redisData);
+                    if (hotKeyDetector.isHot(keys.get(i))) {
+                        nearCache.promote(keys.get(i), redisData);
+                    }
+                } else {
+                    cacheMetrics.stale(keys.get(i));
+                }
+                if (!fresh || shouldRefreshEarly(redisData)) {
+                    // 已过期或临近过期，和单个查询一样异步重建，先返回旧值
+                    rebuildAsync(keys.get(i), id, redisData.getExpireTime(), type, lockKeyPrefix,
+                            one -> CollUtils.getFirst(dbBatchFallback.apply(CollUtils.singletonList(one))), time, unit);
+                }
+                if (r != null) {
+                    found.put(id, r);
+                }
+            }
+        }
+
+        // 3. redis中也没有的，一次性批量查询数据库，再用管道一次写回redis
+        if (!missIds.isEmpty()) {
+            long start = System.currentTimeMillis();
+            List<R> loaded = dbBatchFallback.apply(missIds);
+            long delta = System.currentTimeMillis() - start;
+            if (CollUtils.isNotEmpty(loaded)) {
+                Map<String, Object> toCache = new HashMap<>(loaded.size());
+                for (R r : loaded) {
+                    ID id = idGetter.apply(r);
+                    found.put(id, r);
+                    toCache.put(keyPrefix + id, r);
+                }
+                setBatchWithLogicalExpire(toCache, time, unit, delta);
+            }
+        }
 
-            if (LocalDateTime.now().isBefore(expireTime)) {
-                return r;
+        // 4. 按ids原有顺序组装结果
+        List<R> result = new ArrayList<>(found.size());
+        for (ID id : idList) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
             }
+        }
+        return result;
+    }
+
+
+    /**
+     * XFetch提前刷新：越临近过期、上次重建越慢，越有可能提前触发刷新
+     * 满足 当前时间 - delta * beta * ln(rand) >= 逻辑过期时间 时刷新，rand在(0,1]之间均匀分布
+     * 这样同一个热点key的刷新时间点会被随机打散，而且大概率在真正过期前就已经刷新完成
+     * @param redisData
+     * @return 是否需要提前刷新
+     */
+    private boolean shouldRefreshEarly(RedisData redisData) {
+        CacheProperties.EarlyRefresh config = cacheProperties.getEarlyRefresh();
+        Long delta = redisData.getDelta();
+        if (!Boolean.TRUE.equals(config.getEnabled()) || delta == null || delta <= 0) {
+            return false;
+        }
+        double gap = -delta * config.getBeta() * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        long remaining = Duration.between(LocalDateTime.now(), redisData.getExpireTime()).toMillis();
+        return remaining <= gap;
+    }
+
 
-            // 6.4 DoubleCheck后如果redis缓存仍是过期的，则开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R r1 = dbFallback.apply(id);
-
-                    // 写入redis，并设置新的逻辑过期时间（如果数据库中也不存在，则写入空值）
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally { // 释放锁要放在finally里面确保一定会执行
-                    // 释放互斥锁
-                    // unLock(lockKey);
-                    lock.unlock();
+    /**
+     * 提交异步重建任务，调用方直接返回旧值
+     * 同一key在本节点只会有一个重建任务，跨节点则由互斥锁保证只有一个节点重建
+     * @param key
+     * @param id
+     * @param seenExpireTime 调用方读到的逻辑过期时间，redis中的过期时间比它新说明已经被重建过了
+     * @param type
+     * @param lockKeyPrefix
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @param <R>
+     * @param <ID>
+     */
+    private <R, ID> void rebuildAsync(String key, ID id, LocalDateTime seenExpireTime, Class<R> type,
+                                      String lockKeyPrefix, Function<ID, R> dbFallback,
+                                      Long time, TimeUnit unit) {
+        // 6.1 提交重建任务，加锁和释放锁都在重建线程中完成，保证是同一个线程
+        cacheMetrics.rebuildTriggered(key);
+        cacheRebuildExecutor.submit(key, () -> {
+            // boolean getLock = tryLock(lockKey);  // 用redis setnx实现分布式锁
+            // redisson分布式锁比 redis setnx 实现的更好
+            RLock lock = redissonClient.getLock(lockKeyPrefix + id);
+            // 尝试获取锁，获取不到说明其他节点正在重建，直接放弃
+            if (!lock.tryLock()) {   // 无参默认失败不等待不重试
+                return false;
+            }
+            try { // 释放锁要放在finally里面确保一定会执行
+                // 6.2 获取成功，做DoubleCheck，如果已被其他节点重建则无需重建缓存
+                byte[] bytes = getRaw(key);
+                if (bytes != null && bytes.length > 0
+                        && cacheCodec.decodeEnvelope(bytes, type).getExpireTime().isAfter(seenExpireTime)) {
+                    return false;
                 }
 
-            });
+                // 6.3 查询数据库，并记录耗时
+                long start = System.nanoTime();
+                R r = dbFallback.apply(id);
+                long delta = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                // 写入redis，并设置新的逻辑过期时间（如果数据库中也不存在，则写入空值）
+                this.setWithLogicalExpire(key, r, time, unit, delta);
+                cacheMetrics.rebuildDuration(key, start);
+                return true;
+            } finally {
+                // 释放互斥锁
+                // unLock(lockKey);
+                lock.unlock();
+            }
+        });
+    }
+
+
+    private byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getRaw(String key) {
+        hotKeyDetector.record(key);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    private List<byte[]> multiGetRaw(List<String> keys) {
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < keys.size(); i++) {
+            rawKeys[i] = rawKey(keys.get(i));
+            hotKeyDetector.record(keys.get(i));
         }
+        return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+    }
 
-        // 7. 返回过期的信息
-        return r;
+    /**
+     * 写入字节，time为null时不设置TTL
+     */
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        hotKeyDetector.record(key);
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey(key), value, expiration, RedisStringCommands.SetOption.upsert()));
     }
 
 
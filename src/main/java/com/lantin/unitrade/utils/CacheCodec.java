@@ -0,0 +1,45 @@
+package com.lantin.unitrade.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码器
+ * CacheClient通过它把Java对象转成存入redis的字节，再从字节还原，具体格式（json、二进制）由实现决定
+ * @Author lantin
+ * @Date 2024/8/6
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码任意Java对象，RedisData会按逻辑过期的封装格式编码
+     * @param value
+     * @return
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码为指定类型
+     * @param bytes
+     * @param type
+     * @return
+     * @param <T>
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 解码为指定元素类型的集合
+     * @param bytes
+     * @param elementType
+     * @return
+     * @param <T>
+     */
+    <T> List<T> decodeList(byte[] bytes, Class<T> elementType);
+
+    /**
+     * 解码逻辑过期的封装RedisData，返回的data已经是dataType类型，不需要再做一次转换
+     * @param bytes
+     * @param dataType
+     * @return
+     */
+    RedisData decodeEnvelope(byte[] bytes, Class<?> dataType);
+}
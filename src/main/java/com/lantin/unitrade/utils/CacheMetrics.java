@@ -0,0 +1,177 @@
+package com.lantin.unitrade.utils;
+
+import com.lantin.unitrade.config.CacheProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 缓存指标，按key前缀统计命中、空值命中、未命中、返回过期数据、触发重建的次数，以及重建耗时和反序列化耗时
+ * 通过micrometer注册，可以在 /actuator/metrics 中查看
+ * 前缀只取配置中列出的几个，其余归为other，避免指标的tag数量无限增长
+ * @Author lantin
+ * @Date 2024/8/9
+ */
+
+@Component
+public class CacheMetrics {
+
+    private static final String OTHER = "other";
+
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private CacheProperties cacheProperties;
+    @Resource
+    private SingleFlight singleFlight;
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    // 前缀 -> 该前缀的所有指标，避免每次都去registry里查找
+    private final Map<String, PrefixMeters> meters = new ConcurrentHashMap<>();
+
+
+    @PostConstruct
+    public void init() {
+        // 请求合并和重建线程池的统计也一起导出
+        bindStats("cache.single.flight", singleFlight, SingleFlight::stats, "executed", "coalesced", "remoteCoalesced");
+        bindStats("cache.rebuild.tasks", cacheRebuildExecutor, CacheRebuildExecutor::stats,
+                "completed", "failed", "rejected", "deduped");
+        Gauge.builder("cache.rebuild.queue", cacheRebuildExecutor,
+                        e -> ((Number) e.stats().get("queueDepth")).doubleValue())
+                .description("缓存重建队列中等待的任务数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 本地缓存命中
+     */
+    public void localHit(String key) {
+        of(key).localHit.increment();
+    }
+
+    /**
+     * redis命中
+     */
+    public void hit(String key) {
+        of(key).hit.increment();
+    }
+
+    /**
+     * 命中了缓存的空值
+     */
+    public void nullHit(String key) {
+        of(key).nullHit.increment();
+    }
+
+    /**
+     * 未命中
+     */
+    public void miss(String key) {
+        of(key).miss.increment();
+    }
+
+    /**
+     * 返回了逻辑过期的数据
+     */
+    public void stale(String key) {
+        of(key).stale.increment();
+    }
+
+    /**
+     * 触发了一次异步重建
+     */
+    public void rebuildTriggered(String key) {
+        of(key).rebuildTriggered.increment();
+    }
+
+    /**
+     * 记录重建耗时
+     * @param key
+     * @param startNanos 开始时的System.nanoTime()
+     */
+    public void rebuildDuration(String key, long startNanos) {
+        of(key).rebuildDuration.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录反序列化耗时
+     * @param key
+     * @param startNanos 开始时的System.nanoTime()
+     */
+    public void decodeDuration(String key, long startNanos) {
+        of(key).decodeDuration.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    private PrefixMeters of(String key) {
+        return meters.computeIfAbsent(prefixOf(key), PrefixMeters::new);
+    }
+
+    private String prefixOf(String key) {
+        for (String prefix : cacheProperties.getMetrics().getPrefixes()) {
+            if (key.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return OTHER;
+    }
+
+    // micrometer只持有obj的弱引用，所以这里传的是spring管理的bean本身，而不是临时的lambda
+    private <T> void bindStats(String name, T obj, Function<T, ? extends Map<String, ?>> stats, String... fields) {
+        for (String field : fields) {
+            FunctionCounter.builder(name, obj, o -> ((Number) stats.apply(o).get(field)).doubleValue())
+                    .tag("type", field)
+                    .register(meterRegistry);
+        }
+    }
+
+
+    private class PrefixMeters {
+        private final Counter localHit;
+        private final Counter hit;
+        private final Counter nullHit;
+        private final Counter miss;
+        private final Counter stale;
+        private final Counter rebuildTriggered;
+        private final Timer rebuildDuration;
+        private final Timer decodeDuration;
+
+        private PrefixMeters(String prefix) {
+            Function<String, Counter> request = result -> Counter.builder("cache.requests")
+                    .description("缓存查询次数")
+                    .tag("prefix", prefix)
+                    .tag("result", result)
+                    .register(meterRegistry);
+            localHit = request.apply("local_hit");
+            hit = request.apply("hit");
+            nullHit = request.apply("null_hit");
+            miss = request.apply("miss");
+            stale = request.apply("stale");
+            rebuildTriggered = Counter.builder("cache.rebuild.triggered")
+                    .description("触发异步重建的次数")
+                    .tag("prefix", prefix)
+                    .register(meterRegistry);
+            rebuildDuration = Timer.builder("cache.rebuild.duration")
+                    .description("缓存重建耗时")
+                    .tag("prefix", prefix)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+            decodeDuration = Timer.builder("cache.decode.duration")
+                    .description("缓存反序列化耗时")
+                    .tag("prefix", prefix)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+    }
+}
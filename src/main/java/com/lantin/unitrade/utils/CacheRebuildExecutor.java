@@ -0,0 +1,155 @@
+package com.lantin.unitrade.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.lantin.unitrade.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 缓存重建线程池
+ * 有界队列，队列满时直接丢弃重建任务，调用方继续返回旧值，下次读到过期数据时会再次尝试重建
+ * 同一个key同时只会有一个重建任务在排队或执行
+ * @Author lantin
+ * @Date 2024/8/7
+ */
+
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private ThreadPoolExecutor executor;
+
+    // 正在排队或执行中的key
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder deduped = new LongAdder();
+    // 没有拿到锁或者已经被其他节点重建过，实际没有重建，不计入完成数和耗时
+    private final LongAdder skipped = new LongAdder();
+    // 重建耗时，只统计实际执行了重建或失败的任务
+    private final LongAdder totalLatency = new LongAdder();
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+
+
+    @PostConstruct
+    public void init() {
+        CacheProperties.Rebuild config = cacheProperties.getRebuild();
+        // 队列满时丢弃任务，只记录次数，过期数据会继续被返回
+        RejectedExecutionHandler discardAndCount = (r, e) -> {
+            rejected.increment();
+            inFlight.remove(((RebuildTask) r).key);
+            log.warn("缓存重建队列已满，放弃重建：{}", ((RebuildTask) r).key);
+        };
+        executor = new ThreadPoolExecutor(
+                config.getCoreSize(), config.getMaxSize(),
+                config.getKeepAlive().toMillis(), TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getQueueCapacity()),
+                new NamedThreadFactory("cache-rebuild-", true),
+                discardAndCount);
+    }
+
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key，同一key已经有任务在排队或执行时不会重复提交
+     * @param task 重建逻辑，实际重建了返回true，没有拿到锁等原因跳过返回false
+     */
+    public void submit(String key, BooleanSupplier task) {
+        if (!inFlight.add(key)) {
+            deduped.increment();
+            return;
+        }
+        submitted.increment();
+        executor.execute(new RebuildTask(key, task));
+    }
+
+
+    /**
+     * 统计信息
+     * @return
+     */
+    public Map<String, Object> stats() {
+        long done = completed.sum() + failed.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("activeThreads", executor.getActiveCount());
+        stats.put("submitted", submitted.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("deduped", deduped.sum());
+        stats.put("skipped", skipped.sum());
+        stats.put("avgLatencyMs", done == 0 ? 0 : totalLatency.sum() / done);
+        stats.put("maxLatencyMs", maxLatency.get());
+        return stats;
+    }
+
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        long timeout = cacheProperties.getRebuild().getShutdownTimeout().toMillis();
+        if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+            log.warn("缓存重建线程池未能在{}ms内结束，剩余任务被丢弃", timeout);
+            executor.shutdownNow();
+        }
+    }
+
+
+    private class RebuildTask implements Runnable {
+        private final String key;
+        private final BooleanSupplier task;
+
+        private RebuildTask(String key, BooleanSupplier task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                if (!task.getAsBoolean()) {
+                    skipped.increment();
+                    return;
+                }
+                completed.increment();
+                recordLatency(start);
+            } catch (Exception e) {
+                // 线程池不会处理异常，这里记录下来，否则重建失败无从得知
+                failed.increment();
+                recordLatency(start);
+                log.error("缓存重建失败：{}", key, e);
+            } finally {
+                inFlight.remove(key);
+            }
+        }
+
+        private void recordLatency(long start) {
+            long latency = System.currentTimeMillis() - start;
+            totalLatency.add(latency);
+            maxLatency.accumulate(latency);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.lantin.unitrade.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+
+/**
+ * 继承自 hutool 的异常工具类
+ */
+public class ExceptionUtils extends ExceptionUtil {
+
+    /**
+     * 判断是否是临时性错误，重试可能成功，如数据库、redis连接失败或超时，会沿着cause链查找
+     * @param e
+     * @return
+     */
+    public static boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof TransientDataAccessException
+                    || t instanceof RecoverableDataAccessException
+                    || t instanceof DataAccessResourceFailureException
+                    || t instanceof RedisConnectionFailureException
+                    || t instanceof SQLTransientException
+                    || t instanceof SQLRecoverableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,211 @@
+package com.lantin.unitrade.utils;
+
+import com.lantin.unitrade.config.CacheProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点key探测
+ * 对访问redis的key按比例采样，用滑动窗口的count-min sketch估算每个key最近一段时间的访问次数，
+ * 估算值超过阈值的key进入top-K热点列表
+ * 滑动窗口由若干个小窗口组成，按当前时间轮转，过期的小窗口在下一次写入时清零，不需要额外的定时任务
+ * @Author lantin
+ * @Date 2024/8/9
+ */
+
+@Component
+public class HotKeyDetector {
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private Window[] windows;
+    private int width;
+    private int depth;
+    private long windowMillis;
+
+    // 热点key -> 最近一次估算的访问次数及时间
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+    private final LongAdder sampled = new LongAdder();
+
+
+    @PostConstruct
+    public void init() {
+        CacheProperties.HotKey config = cacheProperties.getHotKey();
+        width = config.getWidth();
+        depth = config.getDepth();
+        windowMillis = config.getWindow().toMillis();
+        windows = new Window[config.getWindows()];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = new Window(depth * width);
+        }
+    }
+
+
+    /**
+     * 记录一次访问
+     * @param key
+     */
+    public void record(String key) {
+        CacheProperties.HotKey config = cacheProperties.getHotKey();
+        if (!Boolean.TRUE.equals(config.getEnabled()) || key == null) {
+            return;
+        }
+        // 采样，降低热路径上的开销
+        if (ThreadLocalRandom.current().nextDouble() >= config.getSampleRate()) {
+            return;
+        }
+        sampled.increment();
+
+        long epoch = System.currentTimeMillis() / windowMillis;
+        Window window = windows[(int) (epoch % windows.length)];
+        window.rollTo(epoch);
+        int h1 = key.hashCode();
+        int h2 = spread(h1);
+        for (int i = 0; i < depth; i++) {
+            window.counts.incrementAndGet(i * width + index(h1, h2, i));
+        }
+
+        // 估算值换算回实际访问次数后与阈值比较
+        long estimate = (long) (estimate(h1, h2, epoch) / config.getSampleRate());
+        if (estimate >= config.getThreshold()) {
+            hotKeys.put(key, new HotKey(estimate, System.currentTimeMillis()));
+            if (hotKeys.size() > config.getTopK()) {
+                evictColdest();
+            }
+        }
+    }
+
+
+    /**
+     * 判断key当前是否是热点key
+     * @param key
+     * @return
+     */
+    public boolean isHot(String key) {
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey == null) {
+            return false;
+        }
+        // 超过一个滑动窗口没有再被采样到，说明已经不热了
+        if (System.currentTimeMillis() - hotKey.updatedAt > windowMillis * windows.length) {
+            hotKeys.remove(key, hotKey);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * 当前的热点key列表，按访问次数降序
+     * @return key -> 最近一个滑动窗口内的估算访问次数
+     */
+    public Map<String, Long> topKeys() {
+        List<Map.Entry<String, HotKey>> entries = new ArrayList<>(hotKeys.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, HotKey> e) -> e.getValue().estimate).reversed());
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, HotKey> entry : entries) {
+            if (isHot(entry.getKey())) {
+                result.put(entry.getKey(), entry.getValue().estimate);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * 统计信息
+     * @return
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sampled", sampled.sum());
+        stats.put("hotKeys", hotKeys.size());
+        return stats;
+    }
+
+
+    /**
+     * 所有仍在滑动窗口内的小窗口之和，每一行取最小值
+     */
+    private long estimate(int h1, int h2, long epoch) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            long sum = 0;
+            int idx = i * width + index(h1, h2, i);
+            for (Window window : windows) {
+                if (epoch - window.epoch < windows.length) {
+                    sum += window.counts.get(idx);
+                }
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    private void evictColdest() {
+        hotKeys.entrySet().stream()
+                .min(Comparator.comparingLong(e -> e.getValue().estimate))
+                .ifPresent(e -> hotKeys.remove(e.getKey(), e.getValue()));
+    }
+
+    // 双重哈希，第i行的下标为 h1 + i * h2
+    private int index(int h1, int h2, int row) {
+        return Math.floorMod(h1 + row * h2, width);
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h | 1;
+    }
+
+
+    private static class Window {
+        private volatile long epoch = -1;
+        private final AtomicLongArray counts;
+
+        private Window(int size) {
+            counts = new AtomicLongArray(size);
+        }
+
+        /**
+         * 小窗口被复用到新的时间段时先清零
+         */
+        private void rollTo(long newEpoch) {
+            if (epoch == newEpoch) {
+                return;
+            }
+            synchronized (this) {
+                if (epoch != newEpoch) {
+                    for (int i = 0; i < counts.length(); i++) {
+                        counts.set(i, 0);
+                    }
+                    epoch = newEpoch;
+                }
+            }
+        }
+    }
+
+    private static class HotKey {
+        private final long estimate;
+        private final long updatedAt;
+
+        private HotKey(long estimate, long updatedAt) {
+            this.estimate = estimate;
+            this.updatedAt = updatedAt;
+        }
+    }
+}
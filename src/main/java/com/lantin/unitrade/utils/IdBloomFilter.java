@@ -0,0 +1,274 @@
+package com.lantin.unitrade.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.lantin.unitrade.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RBucket;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.lantin.unitrade.constant.RedisConstants.BLOOM_FILTER_KEY;
+import static com.lantin.unitrade.constant.RedisConstants.LOCK_KEY_PREFIX;
+
+/**
+ * 基于redisson RBloomFilter的id布隆过滤器，用于在查询redis和数据库之前拦截一定不存在的id，防止缓存穿透
+ * 每个过滤器（如item、user）在redis中保存一个指针 bloom:{name}，指向当前生效的过滤器 bloom:{name}:{版本}
+ * 重建时写入新版本，写完后切换指针再删除旧版本，重建期间查询不受影响
+ * 过滤器还没有建好或者redis异常时一律放行（fail-open），退化为原来的缓存空值方案
+ * @Author lantin
+ * @Date 2024/8/8
+ */
+
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    // 过滤器名 -> 分页查询id的逻辑（参数是上一页最后一个id）
+    private final Map<String, Function<Long, List<Long>>> sources = new ConcurrentHashMap<>();
+    // 过滤器名 -> 当前生效的过滤器，没有的说明还没建好
+    private final Map<String, RBloomFilter<Long>> current = new ConcurrentHashMap<>();
+    // 批量判断时并发调用contains的线程池
+    private final ExecutorService checker = Executors.newFixedThreadPool(4, new NamedThreadFactory("bloom-check-", true));
+    private static final long BATCH_TIMEOUT_MILLIS = 500;
+
+
+    /**
+     * 注册过滤器及其数据来源
+     * @param name 过滤器名，如item
+     * @param idPager 按id升序分页查询id的逻辑，参数是上一页最后一个id，返回空集合表示查完了
+     */
+    public void register(String name, Function<Long, List<Long>> idPager) {
+        sources.put(name, idPager);
+    }
+
+
+    /**
+     * 判断id是否可能存在
+     * @param name
+     * @param id
+     * @return false表示一定不存在
+     */
+    public boolean mightContain(String name, Long id) {
+        if (!Boolean.TRUE.equals(cacheProperties.getBloom().getEnabled()) || id == null) {
+            return true;
+        }
+        RBloomFilter<Long> filter = current.get(name);
+        if (filter == null) {
+            // 还没建好，放行
+            return true;
+        }
+        try {
+            return filter.contains(id);
+        } catch (Exception e) {
+            // 可能是其他节点已经切换版本并删除了旧的过滤器，放行并重新加载指针
+            log.warn("布隆过滤器{}查询失败，放行", name, e);
+            refresh(name);
+            return true;
+        }
+    }
+
+
+    /**
+     * 批量判断id是否可能存在，每个id用RBloomFilter.contains判断，多个id在线程池中并发执行，
+     * redisson的连接是多路复用的，并发的请求会合并发送，总耗时接近一次网络往返
+     * @param name
+     * @param ids
+     * @return 可能存在的id，一定不存在的被过滤掉；出错或超时时原样放行
+     */
+    public List<Long> filter(String name, Collection<Long> ids) {
+        if (!Boolean.TRUE.equals(cacheProperties.getBloom().getEnabled()) || CollUtils.isEmpty(ids)) {
+            return new ArrayList<>(ids);
+        }
+        RBloomFilter<Long> filter = current.get(name);
+        if (filter == null) {
+            return new ArrayList<>(ids);
+        }
+        if (ids.size() == 1) {
+            Long id = ids.iterator().next();
+            return mightContain(name, id) ? CollUtils.singletonList(id) : CollUtils.emptyList();
+        }
+        List<Long> candidates = new ArrayList<>(ids);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(candidates.size());
+        for (Long id : candidates) {
+            futures.add(id == null ? CompletableFuture.completedFuture(true)
+                    : CompletableFuture.supplyAsync(() -> filter.contains(id), checker));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .get(BATCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return candidates;
+        } catch (Exception e) {
+            log.warn("布隆过滤器{}批量查询失败，放行", name, e);
+            refresh(name);
+            return candidates;
+        }
+        List<Long> maybe = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            if (futures.get(i).join()) {
+                maybe.add(candidates.get(i));
+            }
+        }
+        return maybe;
+    }
+
+
+    /**
+     * 新增id，新数据写入数据库后调用
+     * 正在重建的新版本也要写一份，否则切换后会漏掉重建期间新增的id
+     * @param name
+     * @param id
+     */
+    public void add(String name, Long id) {
+        if (!Boolean.TRUE.equals(cacheProperties.getBloom().getEnabled()) || id == null) {
+            return;
+        }
+        try {
+            RBloomFilter<Long> filter = current.get(name);
+            if (filter != null) {
+                filter.add(id);
+            }
+            String building = buildingBucket(name).get();
+            if (building != null) {
+                redissonClient.<Long>getBloomFilter(building).add(id);
+            }
+        } catch (Exception e) {
+            log.warn("布隆过滤器{}新增id失败：{}", name, id, e);
+        }
+    }
+
+
+    /**
+     * 加载所有过滤器，redis中还没有的则重建
+     */
+    public void init() {
+        for (String name : sources.keySet()) {
+            refresh(name);
+            if (current.get(name) == null) {
+                rebuild(name);
+            }
+        }
+    }
+
+
+    /**
+     * 定期重建所有过滤器，布隆过滤器不支持删除，重建可以清理掉已删除的id，同时修正误判率
+     */
+    @Scheduled(cron = "${unitrade.cache.bloom.rebuild-cron:0 0 4 * * ?}")
+    public void rebuildAll() {
+        if (!Boolean.TRUE.equals(cacheProperties.getBloom().getEnabled())) {
+            return;
+        }
+        sources.keySet().forEach(this::rebuild);
+    }
+
+
+    /**
+     * 定期从redis重新加载指针，感知其他节点完成的重建
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void refreshAll() {
+        if (!Boolean.TRUE.equals(cacheProperties.getBloom().getEnabled())) {
+            return;
+        }
+        sources.keySet().forEach(this::refresh);
+    }
+
+
+    /**
+     * 重建指定的过滤器，多个节点同时触发时只有一个节点执行
+     * @param name
+     */
+    public void rebuild(String name) {
+        Function<Long, List<Long>> idPager = sources.get(name);
+        RLock lock = redissonClient.getLock(LOCK_KEY_PREFIX + BLOOM_FILTER_KEY + name);
+        if (idPager == null || !lock.tryLock()) {
+            return;
+        }
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        String newName = BLOOM_FILTER_KEY + name + ":" + System.currentTimeMillis();
+        try {
+            long start = System.currentTimeMillis();
+            RBloomFilter<Long> filter = redissonClient.getBloomFilter(newName);
+            filter.tryInit(config.getExpectedInsertions(), config.getFalseProbability());
+            // 记录正在重建的版本，重建期间新增的id也会写进来
+            buildingBucket(name).set(newName, 1, TimeUnit.HOURS);
+
+            // 按id游标分页，避免深分页
+            long count = 0;
+            Long lastId = 0L;
+            List<Long> ids = idPager.apply(lastId);
+            while (CollUtils.isNotEmpty(ids)) {
+                ids.forEach(filter::add);
+                count += ids.size();
+                lastId = ids.get(ids.size() - 1);
+                ids = idPager.apply(lastId);
+            }
+
+            // 切换指针，删除旧版本
+            String oldName = pointerBucket(name).getAndSet(newName);
+            buildingBucket(name).delete();
+            current.put(name, filter);
+            if (oldName != null) {
+                redissonClient.getBloomFilter(oldName).delete();
+            }
+            log.info("布隆过滤器{}重建完成，共{}个id，耗时{}ms", name, count, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("布隆过滤器{}重建失败", name, e);
+            buildingBucket(name).delete();
+            redissonClient.getBloomFilter(newName).delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @PreDestroy
+    public void destroy() {
+        checker.shutdownNow();
+    }
+
+    private void refresh(String name) {
+        try {
+            String filterName = pointerBucket(name).get();
+            if (filterName == null) {
+                current.remove(name);
+            } else {
+                current.put(name, redissonClient.getBloomFilter(filterName));
+            }
+        } catch (Exception e) {
+            log.warn("布隆过滤器{}加载失败", name, e);
+        }
+    }
+
+    private RBucket<String> pointerBucket(String name) {
+        return redissonClient.getBucket(BLOOM_FILTER_KEY + name, StringCodec.INSTANCE);
+    }
+
+    private RBucket<String> buildingBucket(String name) {
+        return redissonClient.getBucket(BLOOM_FILTER_KEY + name + ":building", StringCodec.INSTANCE);
+    }
+}
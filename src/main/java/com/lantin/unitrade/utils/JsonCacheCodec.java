@@ -0,0 +1,43 @@
+package com.lantin.unitrade.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 基于hutool json的编解码器，也就是原来的缓存格式
+ * 可读性好，方便在redis客户端中直接查看，作为二进制编码的兜底
+ * @Author lantin
+ * @Date 2024/8/6
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        return JSONUtil.toList(new String(bytes, StandardCharsets.UTF_8), elementType);
+    }
+
+    @Override
+    public RedisData decodeEnvelope(byte[] bytes, Class<?> dataType) {
+        // 只解析一次得到JSONObject，再分别取出过期时间和数据
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(json.getLocalDateTime("expireTime", null));
+        redisData.setDelta(json.getLong("delta"));
+        JSONObject data = json.getJSONObject("data");
+        redisData.setData(data == null ? null : data.toBean(dataType));
+        return redisData;
+    }
+}
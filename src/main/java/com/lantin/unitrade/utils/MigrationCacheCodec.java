@@ -0,0 +1,44 @@
+package com.lantin.unitrade.utils;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 格式迁移期间使用的编解码器
+ * 写入使用指定的目标格式，读取时根据首字节判断是二进制还是json，两种格式都能读
+ * 这样切换格式时不需要清空redis，旧数据会随着过期重建逐渐变成新格式
+ * @Author lantin
+ * @Date 2024/8/6
+ */
+@RequiredArgsConstructor
+public class MigrationCacheCodec implements CacheCodec {
+
+    private final CacheCodec writeCodec;
+    private final BinaryCacheCodec binaryCodec;
+    private final JsonCacheCodec jsonCodec;
+
+    @Override
+    public byte[] encode(Object value) {
+        return writeCodec.encode(value);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return readCodec(bytes).decode(bytes, type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        return readCodec(bytes).decodeList(bytes, elementType);
+    }
+
+    @Override
+    public RedisData decodeEnvelope(byte[] bytes, Class<?> dataType) {
+        return readCodec(bytes).decodeEnvelope(bytes, dataType);
+    }
+
+    private CacheCodec readCodec(byte[] bytes) {
+        return BinaryCacheCodec.isBinary(bytes) ? binaryCodec : jsonCodec;
+    }
+}
@@ -0,0 +1,220 @@
+package com.lantin.unitrade.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import com.lantin.unitrade.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.lantin.unitrade.constant.RedisConstants.CACHE_INVALIDATE_TOPIC;
+
+/**
+ * 本地一级缓存（L1），位于redis（L2）之前
+ * 按key前缀划分区域，每个区域有独立的容量上限（LRU淘汰）和存活时间
+ * 某个节点删除或重写缓存时，通过redis发布订阅通知所有节点删除本地副本
+ * 另外还有一个热点区域，探测到的热点key即使不属于任何区域，也会被提升到这里保存很短的时间
+ * 无法按key精确失效的区域（如搜索结果）可以按前缀整体清空，同样会通知所有节点
+ * @Author lantin
+ * @Date 2024/8/5
+ */
+
+@Slf4j
+@Component
+public class NearCache {
+
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    // 批量失效消息中key之间的分隔符
+    private static final String KEY_SEPARATOR = "\n";
+    // 失效消息以该后缀结尾时表示清空整个区域
+    private static final String PREFIX_WILDCARD = "*";
+
+    // key前缀 -> 本地缓存区域，只在启动时初始化，之后只读
+    private final Map<String, Cache<String, Object>> regions = new LinkedHashMap<>();
+    // 热点key区域，未开启热点key提升时为null
+    private Cache<String, Object> hotRegion;
+    // 跨节点失效通知的频道
+    private RTopic invalidateTopic;
+
+
+    @PostConstruct
+    public void init() {
+        CacheProperties.Local local = cacheProperties.getLocal();
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        if (Boolean.TRUE.equals(local.getEnabled())) {
+            for (CacheProperties.Spec spec : local.getSpecs()) {
+                regions.put(spec.getKeyPrefix(), CacheUtil.newLRUCache(spec.getMaxSize(), spec.getTtl().toMillis()));
+            }
+        }
+        if (Boolean.TRUE.equals(hotKey.getEnabled())) {
+            hotRegion = CacheUtil.newLRUCache(hotKey.getLocalMaxSize(), hotKey.getLocalTtl().toMillis());
+        }
+        if (regions.isEmpty() && hotRegion == null) {
+            return;
+        }
+        // 订阅失效通知，收到其他节点（包括自己）发来的key后删除本地副本
+        invalidateTopic = redissonClient.getTopic(CACHE_INVALIDATE_TOPIC, StringCodec.INSTANCE);
+        // 批量失效时一条消息里有多个key，用换行分隔
+        invalidateTopic.addListener(String.class, (channel, keys) -> {
+            for (String key : keys.split(KEY_SEPARATOR)) {
+                if (key.endsWith(PREFIX_WILDCARD)) {
+                    clearRegion(key.substring(0, key.length() - PREFIX_WILDCARD.length()));
+                } else {
+                    evictLocal(key);
+                }
+            }
+        });
+        log.info("本地一级缓存已开启，缓存区域：{}，热点区域：{}", regions.keySet(), hotRegion != null);
+    }
+
+    /**
+     * 查询本地缓存
+     * @param key
+     * @return 未开启、key不属于任何区域或未命中时返回null
+     */
+    public Object get(String key) {
+        Cache<String, Object> region = regionOf(key);
+        // 不刷新最后访问时间，否则热点数据会一直续期，失去TTL兜底的意义
+        Object value = region == null ? null : region.get(key, false);
+        if (value == null && hotRegion != null) {
+            value = hotRegion.get(key, false);
+        }
+        return value;
+    }
+
+    /**
+     * 写入本地缓存，key不属于任何区域时直接忽略
+     * @param key
+     * @param value
+     */
+    public void put(String key, Object value) {
+        Cache<String, Object> region = regionOf(key);
+        if (region != null && value != null) {
+            region.put(key, value);
+        }
+    }
+
+    /**
+     * 将热点key提升到本地热点区域
+     * 只有配置了可提升前缀的key才会被提升，这样失效时才能知道需要广播
+     * @param key
+     * @param value
+     */
+    public void promote(String key, Object value) {
+        if (isPromotable(key) && value != null) {
+            hotRegion.put(key, value);
+        }
+    }
+
+    /**
+     * 删除本节点的本地副本，并广播通知其他节点删除
+     * @param key
+     */
+    public void invalidate(String key) {
+        if (!isLocal(key)) {
+            return;
+        }
+        evictLocal(key);
+        try {
+            invalidateTopic.publish(key);
+        } catch (Exception e) {
+            // 广播失败时其他节点的副本最多在TTL后过期，不影响主流程
+            log.error("广播本地缓存失效消息失败，key：{}", key, e);
+        }
+    }
+
+    /**
+     * 批量删除本地副本，只广播一条消息，用于批量写入的场景
+     * @param keys
+     */
+    public void invalidateAll(Collection<String> keys) {
+        List<String> matched = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (isLocal(key)) {
+                evictLocal(key);
+                matched.add(key);
+            }
+        }
+        if (matched.isEmpty()) {
+            return;
+        }
+        try {
+            invalidateTopic.publish(String.join(KEY_SEPARATOR, matched));
+        } catch (Exception e) {
+            log.error("广播本地缓存失效消息失败，key数量：{}", matched.size(), e);
+        }
+    }
+
+    /**
+     * 清空某个区域在所有节点上的本地缓存，用于一次变更可能影响区域中任意key的场景
+     * @param prefix 区域的key前缀，必须与配置中的前缀完全一致
+     */
+    public void invalidatePrefix(String prefix) {
+        if (!regions.containsKey(prefix)) {
+            return;
+        }
+        clearRegion(prefix);
+        try {
+            invalidateTopic.publish(prefix + PREFIX_WILDCARD);
+        } catch (Exception e) {
+            log.error("广播本地缓存失效消息失败，前缀：{}", prefix, e);
+        }
+    }
+
+    private void clearRegion(String prefix) {
+        Cache<String, Object> region = regions.get(prefix);
+        if (region != null) {
+            region.clear();
+        }
+    }
+
+    private void evictLocal(String key) {
+        Cache<String, Object> region = regionOf(key);
+        if (region != null) {
+            region.remove(key);
+        }
+        if (hotRegion != null) {
+            hotRegion.remove(key);
+        }
+    }
+
+    // key可能存在于本地缓存（某个区域或热点区域）
+    private boolean isLocal(String key) {
+        return regionOf(key) != null || isPromotable(key);
+    }
+
+    private boolean isPromotable(String key) {
+        if (hotRegion == null) {
+            return false;
+        }
+        for (String prefix : cacheProperties.getHotKey().getPromotePrefixes()) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Cache<String, Object> regionOf(String key) {
+        for (Map.Entry<String, Cache<String, Object>> entry : regions.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -13,5 +13,6 @@ import java.time.LocalDateTime;
 @Data
 public class RedisData {
     private LocalDateTime expireTime;   // 逻辑过期时间
+    private Long delta;   // 上一次重建耗时（毫秒），用于提前刷新（XFetch）
     private Object data;
 }
@@ -0,0 +1,218 @@
+package com.lantin.unitrade.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.lantin.unitrade.config.IdProperties;
+import com.lantin.unitrade.constant.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 号段模式的redis全局ID生成器
+ * id的格式和RedisIdWorker相同：时间戳（秒） << 32 | 当天的序列号，序列号也来自同一个key icr:{业务}{日期}
+ * 不同的是每次用incrby从redis取一段序列号（号段），之后在内存中用原子计数器分配，号段快用完时异步预取下一段，
+ * 大部分id不需要访问redis
+ * 号段只在取号的那一天内使用，跨天后丢弃，保证同一秒内不会出现两个相同的序列号
+ * 节点重启会浪费掉还没有用完的号段，id仍然是唯一的，只是不再严格连续
+ * @Author lantin
+ * @Date 2024/8/12
+ */
+
+@Slf4j
+@Component
+public class SegmentIdWorker {
+
+    // 基础时间（秒，2022年1月1日0时0分0秒）
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    // 序列号的位数
+    private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IdProperties idProperties;
+
+    // 业务前缀 -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-", true));
+    // 时钟，测试时可以替换
+    private Clock clock = Clock.systemDefaultZone();
+    // 当天的日期和时间范围，跨天时才重新计算，避免每次都格式化日期
+    private volatile Day today = Day.now(clock);
+
+
+    /**
+     * 生成id
+     * @param keyPrefix 用于区分业务
+     * @return
+     */
+    public long nextId(String keyPrefix) {
+        // 1. 生成时间戳，和RedisIdWorker一样按本地时间计算
+        long localSecond = clock.millis() / 1000 + today.offsetSeconds;
+        Day day = today;
+        if (localSecond >= day.endSecond) {
+            day = today = Day.now(clock);
+            localSecond = clock.millis() / 1000 + day.offsetSeconds;
+        }
+        long timestamp = localSecond - BEGIN_TIMESTAMP;
+
+        // 2. 从号段中取序列号
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day);
+
+        // 3. 拼接并返回
+        return timestamp << COUNT_BITS | count;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        loader.shutdownNow();
+    }
+
+    void setClock(Clock clock) {
+        this.clock = clock;
+        this.today = Day.now(clock);
+    }
+
+
+    /**
+     * 从redis取一个号段
+     */
+    private Segment fetch(String keyPrefix, Day day) {
+        int size = idProperties.getSegmentSize();
+        Long end = stringRedisTemplate.opsForValue().increment(RedisConstants.INCREMENT_ID_KEY + keyPrefix + day.date, size);
+        if (end == null) {
+            throw new IllegalStateException("获取id号段失败");
+        }
+        return new Segment(day, end - size + 1, end + 1);
+    }
+
+
+    /**
+     * 一个业务的号段，当前号段用完后切换到预取好的下一个号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(Day day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day.sameAs(day)) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count < segment.end) {
+                        // 剩余的比例低于阈值时预取下一个号段，只有恰好到达阈值的线程会触发
+                        if (segment.end - count == segment.refillAt) {
+                            loadNextAsync(day);
+                        }
+                        return count;
+                    }
+                }
+                switchSegment(segment, day);
+            }
+        }
+
+        /**
+         * 当前号段用完或者已经跨天，切换到下一个号段，预取的号段还没回来时同步取
+         */
+        private synchronized void switchSegment(Segment used, Day day) {
+            if (current != used) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment candidate = next;
+            next = null;
+            current = candidate != null && candidate.day.sameAs(day) ? candidate : fetch(keyPrefix, day);
+        }
+
+        private void loadNextAsync(Day day) {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                loader.execute(() -> {
+                    try {
+                        Segment segment = fetch(keyPrefix, day);
+                        synchronized (this) {
+                            if (next == null) {
+                                next = segment;
+                            }
+                        }
+                    } catch (Exception e) {
+                        log.error("预取id号段失败，业务：{}", keyPrefix, e);
+                    } finally {
+                        loading.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                loading.set(false);
+            }
+        }
+    }
+
+    private class Segment {
+        private final Day day;
+        private final AtomicLong cursor;
+        // 不包含
+        private final long end;
+        // 剩余个数等于该值时开始预取
+        private final long refillAt;
+
+        private Segment(Day day, long start, long end) {
+            this.day = day;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.refillAt = Math.max(1, (long) ((end - start) * idProperties.getRefillRatio()));
+        }
+    }
+
+    private static class Day {
+        // redis key中的日期
+        private final String date;
+        // 本地时间相对UTC的偏移
+        private final long offsetSeconds;
+        // 第二天0点的本地秒数
+        private final long endSecond;
+
+        private Day(String date, long offsetSeconds, long endSecond) {
+            this.date = date;
+            this.offsetSeconds = offsetSeconds;
+            this.endSecond = endSecond;
+        }
+
+        /**
+         * 按日期比较，跨天时多个线程可能各自创建了同一天的Day对象，不能按引用比较，否则每个线程都会再取一个号段
+         */
+        private boolean sameAs(Day other) {
+            return date.equals(other.date);
+        }
+
+        private static Day now(Clock clock) {
+            Instant now = clock.instant();
+            ZoneOffset offset = clock.getZone().getRules().getOffset(now);
+            LocalDate date = LocalDate.ofInstant(now, offset);
+            return new Day(date.format(DATE_FORMATTER), offset.getTotalSeconds(),
+                    date.plusDays(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC));
+        }
+    }
+}
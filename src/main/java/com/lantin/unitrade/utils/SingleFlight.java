@@ -0,0 +1,116 @@
+package com.lantin.unitrade.utils;
+
+import com.lantin.unitrade.config.CacheProperties;
+import com.lantin.unitrade.exception.BizIllegalException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并（single-flight）
+ * 同一个key同时只有一个线程真正执行加载逻辑，其余并发请求等待同一个future拿结果
+ * 用于缓存未命中时防止大量并发请求同时打到数据库
+ * 等待的线程最多等待wait-timeout，加载线程卡住时不会把所有等待的线程一起挂住
+ * @Author lantin
+ * @Date 2024/8/7
+ */
+
+@Slf4j
+@Component
+public class SingleFlight {
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    // 正在加载中的key
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // 真正执行了加载逻辑的次数
+    private final LongAdder executed = new LongAdder();
+    // 被合并（等待其他线程的结果）的次数
+    private final LongAdder coalesced = new LongAdder();
+    // 分布式模式下，等到其他节点加载完成后直接从redis拿到结果的次数
+    private final LongAdder remoteCoalesced = new LongAdder();
+
+
+    /**
+     * 执行加载逻辑，同一key的并发调用共享同一次执行结果
+     * @param key
+     * @param loader 加载逻辑
+     * @return
+     * @param <T>
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            // 已经有线程在加载，等待它的结果
+            coalesced.increment();
+            try {
+                return (T) existing.get(cacheProperties.getSingleFlight().getWaitTimeout().toMillis(),
+                        TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                // 加载线程抛出的异常原样抛给等待的线程
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new BizIllegalException("加载数据失败，key：" + key, e.getCause());
+            } catch (TimeoutException e) {
+                // 加载线程迟迟没有结果，不再等待，自己加载
+                log.warn("等待合并请求的结果超时，直接加载，key：{}", key);
+                return loader.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BizIllegalException("等待加载结果时被中断，key：" + key, e);
+            }
+        }
+
+        executed.increment();
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // 包括Error和通过lambda偷偷抛出的受检异常，都要让future结束，否则等待的线程会一直等下去
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 加载结束后移除，下一次未命中会重新加载
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 记录一次跨节点的合并
+     */
+    public void recordRemoteCoalesced() {
+        remoteCoalesced.increment();
+    }
+
+    /**
+     * 统计信息
+     * @return
+     */
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("executed", executed.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("remoteCoalesced", remoteCoalesced.sum());
+        stats.put("inFlight", (long) inFlight.size());
+        return stats;
+    }
+}
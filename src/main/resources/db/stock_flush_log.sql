@@ -0,0 +1,8 @@
+-- 库存写回记录表，库存流水批次写回数据库时的幂等依据
+CREATE TABLE IF NOT EXISTS `stock_flush_log` (
+  `flush_id` varchar(64) NOT NULL COMMENT '批次id',
+  `item_count` int NOT NULL DEFAULT 0 COMMENT '本批次涉及的商品数',
+  `create_time` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`flush_id`),
+  KEY `idx_create_time` (`create_time`) COMMENT '按创建时间清理过期记录'
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='库存写回记录表';
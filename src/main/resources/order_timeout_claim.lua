@@ -0,0 +1,28 @@
+-- 认领一批已经超时的订单
+-- KEYS[1]: 等待超时的订单 order:timeout，zset结构：订单id -> 超时时间（毫秒）
+-- KEYS[2]: 正在处理的订单 order:timeout:processing，zset结构：订单id -> 租约到期时间（毫秒）
+-- ARGV[1]: 当前时间，ARGV[2]: 最多认领的个数，ARGV[3]: 租约到期时间
+-- 认领的订单移到processing中而不是直接删除，处理完由调用方删除；处理过程中宕机的订单在租约到期后会被重新认领
+-- 返回认领到的订单id
+
+local now = ARGV[1]
+local count = tonumber(ARGV[2])
+
+-- 1. 先认领租约已经到期的（之前处理失败或者处理的节点宕机了）
+local ids = redis.call('zrangebyscore', KEYS[2], '-inf', now, 'LIMIT', 0, count)
+
+-- 2. 不够再认领新超时的
+if #ids < count then
+    local expired = redis.call('zrangebyscore', KEYS[1], '-inf', now, 'LIMIT', 0, count - #ids)
+    for i = 1, #expired do
+        ids[#ids + 1] = expired[i]
+    end
+end
+
+-- 3. 移到processing中
+for i = 1, #ids do
+    redis.call('zadd', KEYS[2], ARGV[3], ids[i])
+    redis.call('zrem', KEYS[1], ids[i])
+end
+
+return ids
@@ -0,0 +1,38 @@
+-- 下单时一次性预扣多个商品的库存，判断和扣减在同一个脚本中完成，不需要全局锁
+-- KEYS[i]: 第i个商品的库存key item:stock:{itemId}
+-- KEYS[n+1]: 库存流水 item:stock:journal，hash结构：商品id -> 还没有写回数据库的库存变化量
+-- ARGV[i]: 第i个商品的购买数量
+-- ARGV[n+i]: 第i个商品的id
+-- 返回每个商品的结果码：0 成功，1 库存缓存不存在，2 库存不足
+-- 只要有一个商品不是0就一个都不扣，保证要么全部预扣成功，要么全部不扣
+-- 同一商品只能出现一次，调用方先按商品id合并购买数量
+-- 所有key必须在同一个节点上，只支持单机redis（或主从、哨兵），不支持redis cluster
+
+local n = #KEYS - 1
+local journalKey = KEYS[n + 1]
+local codes = {}
+local ok = true
+
+-- 1. 先检查所有商品
+for i = 1, n do
+    local stock = tonumber(redis.call('get', KEYS[i]))
+    if stock == nil then
+        codes[i] = 1
+        ok = false
+    elseif stock < tonumber(ARGV[i]) then
+        codes[i] = 2
+        ok = false
+    else
+        codes[i] = 0
+    end
+end
+
+-- 2. 全部充足才统一扣减，同时记录流水，由StockWriteBackService合并后写回数据库
+if ok then
+    for i = 1, n do
+        redis.call('decrby', KEYS[i], ARGV[i])
+        redis.call('hincrby', journalKey, ARGV[n + i], -tonumber(ARGV[i]))
+    end
+end
+
+return codes
@@ -0,0 +1,10 @@
+-- 归还库存，只在库存key存在时才加回去
+-- key不存在说明还没有预热，直接incrby会把归还的数量当成库存写进去，之后预热的setnx也不会再覆盖
+-- KEYS[1]: 库存key
+-- ARGV[1]: 归还的数量
+-- 返回归还后的库存，key不存在时返回-1
+
+if redis.call('exists', KEYS[1]) == 0 then
+    return -1
+end
+return redis.call('incrby', KEYS[1], ARGV[1])
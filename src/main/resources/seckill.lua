@@ -5,25 +5,52 @@ local itemId = ARGV[1]
 local userId = ARGV[2]
 -- 订单id
 local orderId = ARGV[3]
+-- 下单处理状态的保存时间（秒）
+local statusTtl = ARGV[4]
 
--- 2. 数据key
--- 库存key
-local stockKey = 'seckill:stock:' .. itemId
--- 下单key
-local orderKey = 'seckill:order:' .. itemId
+-- 2. 数据key，全部由调用方通过KEYS传入，脚本中不拼接key
+-- 这些key不在同一个槽，只支持单机redis（或主从、哨兵），不支持redis cluster
+-- 库存key，item:stock:{itemId}，开启库存分片时是某个分片 item:stock:{itemId}:{分片号}
+local stockKey = KEYS[1]
+-- 下单key，set结构，记录已经抢到的用户，保证一人一单 seckill:order:{itemId}
+local orderKey = KEYS[2]
+-- 消息队列 stream.orders
+local streamKey = KEYS[3]
+-- 库存流水，hash结构：商品id -> 还没有写回数据库的库存变化量 item:stock:journal
+local journalKey = KEYS[4]
+-- 下单处理状态 order:status:{orderId}，hash结构：status -> 状态值，userId -> 下单用户
+local statusKey = KEYS[5]
+-- 消息索引，hash结构：消息id -> userId:itemId:orderId，消息确认时删除，消息丢失时靠它归还库存和下单资格 stream.orders.index
+local indexKey = KEYS[6]
+
+-- 3. 脚本业务，lua脚本使得判断库存、判断一人一单和扣库存成为一个原子操作，保证了并发情况下的数据一致性
+-- 判断是否重复下单 sismember orderKey userId
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 重复下单
+    return 2
+end
 
--- 3. 脚本业务，lua脚本使得判断库存和扣库存成为一个原子操作，保证了并发情况下的数据一致性
 -- 判断库存是否充足 get stockKey
--- 注意redis取出的值是字符串，因此要转成数字再比较
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+-- 注意redis取出的值是字符串，因此要转成数字再比较，key不存在时也当作库存不足
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
     -- 库存不足
     return 1
 end
 
 -- 扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
+-- 记录库存流水 hincrby journalKey itemId -1
+redis.call('hincrby', journalKey, itemId, -1)
+-- 记录下单用户 sadd orderKey userId
+redis.call('sadd', orderKey, userId)
 
 -- 发送消息到队列中 xadd stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'itemId', itemId, 'id', orderId)
+-- 写入时不裁剪，否则可能裁掉还没有消费或确认的消息，由消费者按已确认的位置裁剪
+local messageId = redis.call('xadd', streamKey, '*', 'userId', userId, 'itemId', itemId, 'id', orderId)
+redis.call('hset', indexKey, messageId, userId .. ':' .. itemId .. ':' .. orderId)
+-- 下单处理状态设为已预扣库存（OrderCreateStatus.RESERVED），订单创建后由消费者改为已创建
+redis.call('hset', statusKey, 'status', '1', 'userId', userId)
+redis.call('expire', statusKey, statusTtl)
 
-return 0
\ No newline at end of file
+return 0
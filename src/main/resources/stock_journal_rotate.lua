@@ -0,0 +1,16 @@
+-- 把库存流水切换为待写回的批次
+-- KEYS[1]: 库存流水 item:stock:journal
+-- KEYS[2]: 正在写回的批次 item:stock:journal:processing
+-- ARGV[1]: 新批次的id，写入批次的 _flushId 字段，写回数据库时作为幂等的依据
+-- 上一个批次还没有处理完（比如写回过程中宕机）时不切换，返回0，由调用方先重放上一个批次
+-- 流水为空时返回0，切换成功返回1
+
+if redis.call('exists', KEYS[2]) == 1 then
+    return 0
+end
+if redis.call('exists', KEYS[1]) == 0 then
+    return 0
+end
+redis.call('rename', KEYS[1], KEYS[2])
+redis.call('hset', KEYS[2], '_flushId', ARGV[1])
+return 1
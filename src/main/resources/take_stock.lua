@@ -0,0 +1,19 @@
+-- 从一个库存key中最多扣减ARGV[1]个库存，不够时有多少扣多少
+-- 用于分片库存：每个分片是一个独立的key，可能在不同的槽上，因此每次只操作一个key
+-- KEYS[1]: 库存key
+-- ARGV[1]: 想要扣减的数量
+-- 返回实际扣减的数量，库存key不存在时返回0
+
+local stock = tonumber(redis.call('get', KEYS[1]))
+if stock == nil or stock <= 0 then
+    return 0
+end
+
+local want = tonumber(ARGV[1])
+local taken = want
+if stock < want then
+    taken = stock
+end
+
+redis.call('decrby', KEYS[1], taken)
+return taken
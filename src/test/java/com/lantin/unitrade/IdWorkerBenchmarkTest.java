@@ -0,0 +1,77 @@
+package com.lantin.unitrade;
+
+import com.lantin.unitrade.utils.RedisIdWorker;
+import com.lantin.unitrade.utils.SegmentIdWorker;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ToLongFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 对比RedisIdWorker和SegmentIdWorker的吞吐量，需要连接redis
+ * 默认不运行，手动运行时加上 -Dbenchmark=true
+ */
+@Slf4j
+@SpringBootTest
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class IdWorkerBenchmarkTest {
+
+    private static final int THREADS = 16;
+    private static final int IDS_PER_THREAD = 2000;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+    @Resource
+    private SegmentIdWorker segmentIdWorker;
+
+    @Test
+    void compareNextId() throws InterruptedException {
+        // 预热
+        run("warm-up redis", p -> redisIdWorker.nextId(p));
+        run("warm-up segment", p -> segmentIdWorker.nextId(p));
+
+        long redis = run("RedisIdWorker", p -> redisIdWorker.nextId(p));
+        long segment = run("SegmentIdWorker", p -> segmentIdWorker.nextId(p));
+        log.info("SegmentIdWorker / RedisIdWorker 吞吐量：{}x", String.format("%.1f", (double) redis / segment));
+    }
+
+    /**
+     * 多线程生成id，校验没有重复
+     * @return 耗时（纳秒）
+     */
+    private long run(String name, ToLongFunction<String> nextId) throws InterruptedException {
+        String prefix = "bench:";
+        Set<Long> ids = ConcurrentHashMap.newKeySet(THREADS * IDS_PER_THREAD);
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        long start = System.nanoTime();
+        for (int i = 0; i < THREADS; i++) {
+            es.submit(() -> {
+                try {
+                    for (int j = 0; j < IDS_PER_THREAD; j++) {
+                        ids.add(nextId.applyAsLong(prefix));
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long cost = System.nanoTime() - start;
+        es.shutdown();
+        int total = THREADS * IDS_PER_THREAD;
+        log.info("{}：{}个id，耗时{}ms，{}个/秒", name, total, cost / 1_000_000, (long) (total * 1e9 / cost));
+        assertEquals(total, ids.size(), "id重复");
+        return cost;
+    }
+}
@@ -0,0 +1,38 @@
+package com.lantin.unitrade.service.impl;
+
+import com.lantin.unitrade.exception.BadRequestException;
+import org.elasticsearch.search.searchafter.SearchAfterBuilder;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 游标的编码和解析，不需要连接es
+ */
+class SearchServiceImplTest {
+
+    private static final String FINGERPRINT = "0123456789abcdef";
+
+    @Test
+    void cursorRoundTripWithFloatSortValue() {
+        // 按算分排序时排序值是float，再按价格（long）和id（keyword）排序
+        Object[] after = {1.25f, 1723456789000L, "100000006163"};
+        String token = SearchServiceImpl.encodeCursor(after, "pit-id", FINGERPRINT);
+
+        SearchServiceImpl.Cursor cursor = SearchServiceImpl.decodeCursor(token, FINGERPRINT);
+
+        assertEquals("pit-id", cursor.pitId);
+        assertArrayEquals(new Object[]{1.25d, 1723456789000L, "100000006163"}, cursor.after);
+        // search_after不接受BigDecimal等类型，解析出的值要能直接使用
+        assertDoesNotThrow(() -> new SearchAfterBuilder().setSortValues(cursor.after));
+    }
+
+    @Test
+    void cursorWithOtherConditionsRejected() {
+        String token = SearchServiceImpl.encodeCursor(new Object[]{1.25f, "1"}, null, FINGERPRINT);
+        assertThrows(BadRequestException.class, () -> SearchServiceImpl.decodeCursor(token, "fedcba9876543210"));
+    }
+}
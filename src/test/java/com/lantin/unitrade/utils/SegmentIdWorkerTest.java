@@ -0,0 +1,194 @@
+package com.lantin.unitrade.utils;
+
+import com.lantin.unitrade.config.IdProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * SegmentIdWorker的号段切换和跨天，用mock的StringRedisTemplate代替redis
+ */
+class SegmentIdWorkerTest {
+
+    private static final ZoneId ZONE = ZoneId.of("Asia/Shanghai");
+    private static final int SEGMENT_SIZE = 10;
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private ValueOperations<String, String> ops;
+    private MutableClock clock;
+    private SegmentIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        // 和redis的incrby一样，每个key一个计数器
+        when(ops.increment(anyString(), anyLong())).thenAnswer(inv ->
+                counters.computeIfAbsent(inv.getArgument(0), k -> new AtomicLong()).addAndGet(inv.getArgument(1)));
+
+        IdProperties idProperties = new IdProperties();
+        idProperties.setSegmentSize(SEGMENT_SIZE);
+        idProperties.setRefillRatio(0.2);
+
+        worker = new SegmentIdWorker();
+        ReflectionTestUtils.setField(worker, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(worker, "idProperties", idProperties);
+        clock = new MutableClock(LocalDateTime.of(2024, 8, 12, 10, 0, 0).atZone(ZONE).toInstant());
+        worker.setClock(clock);
+    }
+
+    @AfterEach
+    void tearDown() {
+        worker.destroy();
+    }
+
+    @Test
+    void switchSegment() {
+        int total = SEGMENT_SIZE * 3 + 5;
+        Set<Long> counts = new HashSet<>();
+        for (int i = 0; i < total; i++) {
+            long count = count(worker.nextId("order:"));
+            if (i < SEGMENT_SIZE) {
+                // 第一个号段同步获取，序列号从1开始连续分配
+                assertEquals(i + 1, count);
+            }
+            assertTrue(counts.add(count), "序列号重复：" + count);
+        }
+        // 用到了4个号段，序列号都来自redis分配过的范围
+        verify(ops, atLeast(4)).increment(eq("icr:order:2024:08:12"), eq((long) SEGMENT_SIZE));
+        long max = counters.get("icr:order:2024:08:12").get();
+        assertTrue(counts.stream().allMatch(c -> c >= 1 && c <= max));
+    }
+
+    @Test
+    void dayRollover() {
+        clock.set(LocalDateTime.of(2024, 8, 12, 23, 59, 58).atZone(ZONE).toInstant());
+        long before = worker.nextId("order:");
+        assertEquals(1, count(before));
+
+        clock.set(LocalDateTime.of(2024, 8, 13, 0, 0, 1).atZone(ZONE).toInstant());
+        long after = worker.nextId("order:");
+        // 跨天后丢弃前一天的号段，从新一天的key重新取号
+        assertEquals(1, count(after));
+        assertEquals(3, timestamp(after) - timestamp(before));
+        verify(ops).increment("icr:order:2024:08:13", SEGMENT_SIZE);
+    }
+
+    @Test
+    void concurrentDayRollover() throws Exception {
+        clock.set(LocalDateTime.of(2024, 8, 12, 23, 59, 59).atZone(ZONE).toInstant());
+        worker.nextId("order:");
+
+        clock.set(LocalDateTime.of(2024, 8, 13, 0, 0, 0).atZone(ZONE).toInstant());
+        // 线程数小于触发预取前能分配的个数，新的一天只应该取一个号段
+        int threads = 8;
+        // 所有线程都读到旧的日期、进入跨天分支后才放行，每个线程各自创建一个Day对象
+        clock.holdRollover(new CyclicBarrier(threads));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                return worker.nextId("order:");
+            }));
+        }
+        start.countDown();
+        Set<Long> counts = new HashSet<>();
+        for (Future<Long> future : futures) {
+            assertTrue(counts.add(count(future.get(5, TimeUnit.SECONDS))));
+        }
+        pool.shutdown();
+
+        // 各线程跨天时创建的Day对象不同，但都是同一天，不会重复取号段
+        verify(ops, times(1)).increment("icr:order:2024:08:13", SEGMENT_SIZE);
+        assertEquals(SEGMENT_SIZE, counters.get("icr:order:2024:08:13").get());
+        assertTrue(counts.stream().allMatch(c -> c >= 1 && c <= threads));
+    }
+
+    private static long count(long id) {
+        return id & 0xFFFFFFFFL;
+    }
+
+    private static long timestamp(long id) {
+        return id >>> 32;
+    }
+
+    private static class MutableClock extends Clock {
+        private volatile Instant instant;
+        // 每个线程调用instant()的次数，nextId中第2次调用是跨天时创建Day对象
+        private final ThreadLocal<Integer> calls = ThreadLocal.withInitial(() -> 0);
+        private volatile CyclicBarrier rollover;
+
+        private MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        private void set(Instant instant) {
+            this.instant = instant;
+        }
+
+        private void holdRollover(CyclicBarrier rollover) {
+            this.rollover = rollover;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZONE;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            int call = calls.get() + 1;
+            calls.set(call);
+            CyclicBarrier barrier = rollover;
+            if (barrier != null && call == 2) {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return instant;
+        }
+    }
+}